@@ -3,6 +3,10 @@ package android.content.res;
 import android.app.AndroidAppHelper;
 import android.util.DisplayMetrics;
 
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
 import de.robv.android.xposed.IXposedHookInitPackageResources;
 import de.robv.android.xposed.IXposedHookZygoteInit;
 import de.robv.android.xposed.IXposedHookZygoteInit.StartupParam;
@@ -12,18 +16,25 @@ import de.robv.android.xposed.callbacks.XC_InitPackageResources.InitPackageResou
  * Provides access to resources from a certain path (usually the module's own path).
  */
 public class XModuleResources extends Resources {
+	private static final HashMap<InstanceKey, WeakReference<XModuleResources>> sInstances = new HashMap<>();
+
 	private XModuleResources(AssetManager assets, DisplayMetrics metrics, Configuration config) {
 		super(assets, metrics, config);
 	}
 
 	/**
-	 * Creates a new instance.
+	 * Creates a new instance or returns an existing one.
 	 *
 	 * <p>This is usually called with {@link StartupParam#modulePath} from
 	 * {@link IXposedHookZygoteInit#initZygote} and {@link InitPackageResourcesParam#res} from
 	 * {@link IXposedHookInitPackageResources#handleInitPackageResources} (or {@code null} for
 	 * system-wide replacements).
 	 *
+	 * <p>Instances are shared for the same path, configuration and display metrics, so the APK
+	 * isn't opened again for every package. Instances created in Zygote are inherited by all apps.
+	 * If the configuration of a shared instance has changed since it was created, a new instance
+	 * is created for the requested configuration.
+	 *
 	 * @param path The path to the APK from which the resources should be loaded.
 	 * @param origRes The resources object from which settings like the display metrics and the
 	 *                configuration should be copied. May be {@code null}.
@@ -32,17 +43,31 @@ public class XModuleResources extends Resources {
 		if (path == null)
 			throw new IllegalArgumentException("path must not be null");
 
-		AssetManager assets = new AssetManager();
-		assets.addAssetPath(path);
+		DisplayMetrics metrics = (origRes != null) ? origRes.getDisplayMetrics() : null;
+		Configuration config = (origRes != null) ? origRes.getConfiguration() : null;
+		InstanceKey key = new InstanceKey(path, metrics, config);
 
-		XModuleResources res;
-		if (origRes != null)
-			res = new XModuleResources(assets, origRes.getDisplayMetrics(),	origRes.getConfiguration());
-		else
-			res = new XModuleResources(assets, null, null);
+		synchronized (sInstances) {
+			WeakReference<XModuleResources> ref = sInstances.get(key);
+			XModuleResources res = (ref != null) ? ref.get() : null;
+			// the system updates the configuration of active resources, so it might not match anymore
+			if (res != null && key.matches(res))
+				return res;
 
-		AndroidAppHelper.addActiveResource(path, res.hashCode(), false, res);
-		return res;
+			AssetManager assets = new AssetManager();
+			assets.addAssetPath(path);
+			res = new XModuleResources(assets, metrics, config);
+			AndroidAppHelper.addActiveResource(path, res.hashCode(), false, res);
+
+			// forget about instances which are no longer used
+			Iterator<WeakReference<XModuleResources>> it = sInstances.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().get() == null)
+					it.remove();
+			}
+			sInstances.put(key, new WeakReference<>(res));
+			return res;
+		}
 	}
 
 	/**
@@ -51,4 +76,64 @@ public class XModuleResources extends Resources {
 	public XResForwarder fwd(int id) {
 		return new XResForwarder(this, id);
 	}
+
+	private static final class InstanceKey {
+		private final String path;
+		private final Configuration config;
+		private final int widthPixels;
+		private final int heightPixels;
+		private final int densityDpi;
+		private final float density;
+		private final float scaledDensity;
+		private final float xdpi;
+		private final float ydpi;
+
+		private InstanceKey(String path, DisplayMetrics metrics, Configuration config) {
+			this.path = path;
+			// copy the configuration, the original object might be updated later
+			this.config = (config != null) ? new Configuration(config) : null;
+			if (metrics != null) {
+				widthPixels = metrics.widthPixels;
+				heightPixels = metrics.heightPixels;
+				densityDpi = metrics.densityDpi;
+				density = metrics.density;
+				scaledDensity = metrics.scaledDensity;
+				xdpi = metrics.xdpi;
+				ydpi = metrics.ydpi;
+			} else {
+				widthPixels = heightPixels = densityDpi = -1;
+				density = scaledDensity = xdpi = ydpi = -1;
+			}
+		}
+
+		/** Checks whether the current configuration of the resources still fits to this key. */
+		private boolean matches(Resources res) {
+			if (config == null && widthPixels == -1)
+				return true;
+			return equals(new InstanceKey(path, res.getDisplayMetrics(), res.getConfiguration()));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof InstanceKey))
+				return false;
+			InstanceKey other = (InstanceKey) o;
+			return path.equals(other.path)
+					&& (config == null ? other.config == null : config.equals(other.config))
+					&& widthPixels == other.widthPixels && heightPixels == other.heightPixels
+					&& densityDpi == other.densityDpi && density == other.density
+					&& scaledDensity == other.scaledDensity && xdpi == other.xdpi && ydpi == other.ydpi;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = path.hashCode();
+			result = 31 * result + (config != null ? config.hashCode() : 0);
+			result = 31 * result + widthPixels;
+			result = 31 * result + heightPixels;
+			result = 31 * result + densityDpi;
+			result = 31 * result + Float.floatToIntBits(density);
+			return result;
+		}
+	}
 }
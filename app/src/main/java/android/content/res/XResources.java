@@ -3,8 +3,10 @@ package android.content.res;
 import android.content.Context;
 import android.content.pm.PackageParser;
 import android.content.pm.PackageParser.PackageParserException;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Movie;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -21,9 +23,14 @@ import android.view.ViewGroup;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
+import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.WeakHashMap;
 
 import de.robv.android.xposed.IXposedHookZygoteInit;
@@ -38,6 +45,7 @@ import xposed.dummy.XResourcesSuperClass;
 
 import static de.robv.android.xposed.XposedHelpers.decrementMethodDepth;
 import static de.robv.android.xposed.XposedHelpers.findAndHookMethod;
+import static de.robv.android.xposed.XposedHelpers.findField;
 import static de.robv.android.xposed.XposedHelpers.getIntField;
 import static de.robv.android.xposed.XposedHelpers.getLongField;
 import static de.robv.android.xposed.XposedHelpers.getObjectField;
@@ -52,18 +60,38 @@ import static de.robv.android.xposed.XposedHelpers.incrementMethodDepth;
  */
 @SuppressWarnings("JniMissingFunction")
 public class XResources extends XResourcesSuperClass {
-	private static final SparseArray<HashMap<String, Object>> sReplacements = new SparseArray<>();
-	private static final SparseArray<HashMap<String, ResourceNames>> sResourceNames = new SparseArray<>();
-
-	private static final byte[] sSystemReplacementsCache = new byte[256]; // bitmask: 0x000700ff => 2048 bit => 256 bytes
-	private byte[] mReplacementsCache; // bitmask: 0x0007007f => 1024 bit => 128 bytes
-	private static final HashMap<String, byte[]> sReplacementsCacheMap = new HashMap<>();
-	private static final SparseArray<ColorStateList> sColorStateListCache = new SparseArray<>(0);
-
-	private static final SparseArray<HashMap<String, CopyOnWriteSortedSet<XC_LayoutInflated>>> sLayoutCallbacks = new SparseArray<>();
-	private static final WeakHashMap<XmlResourceParser, XMLInstanceDetails> sXmlInstanceDetails = new WeakHashMap<>();
+	private static final Object sReplacementsLock = new Object();
+	// published table for lookups, see getReplacements()
+	private static volatile ResourceIdTable sReplacements = ResourceIdTable.EMPTY;
+	// replacements which haven't been published yet, only accessed while holding sReplacementsLock
+	private static int[] sPendingIds = new int[16];
+	private static int[] sPendingResDirs = new int[16];
+	private static Object[] sPendingValues = new Object[16];
+	private static int sPendingCount = 0;
+	private static volatile boolean sHasPendingReplacements = false;
+	private static final HashMap<String, Integer> sResDirIndexes = new HashMap<>();
+
+	private static final ResourceIdBitmap sSystemReplacementsCache = new ResourceIdBitmap();
+	private ResourceIdBitmap mReplacementsCache;
+	private static final HashMap<String, ResourceIdBitmap> sReplacementsCacheMap = new HashMap<>();
+	private static final ColorStateListCache sColorStateListCache = new ColorStateListCache(8, 32);
+	private static final DrawableCache sDrawableCache = new DrawableCache();
+	private static final WeakHashMap<Resources, HashMap<String, SparseArray<TranslatedResId>>> sTranslatedResIds = new WeakHashMap<>();
+
+	private static final Object sLayoutHooksLock = new Object();
+	private static volatile ResourceIdTable sLayoutHooks = ResourceIdTable.EMPTY;
+	// Details for parsers of hooked layouts, which are only visible to the thread that called getLayout().
+	// That's fine because LayoutInflater.inflate(int, ...) loads and inflates a layout on the same thread,
+	// and parsers aren't thread-safe anyway. A parser which is handed to another thread before it's
+	// inflated there doesn't trigger the layout hooks.
+	private static final ThreadLocal<WeakHashMap<XmlResourceParser, XMLInstanceDetails>> sXmlInstanceDetails = new ThreadLocal<WeakHashMap<XmlResourceParser, XMLInstanceDetails>>() {
+		@Override
+		protected WeakHashMap<XmlResourceParser, XMLInstanceDetails> initialValue() {
+			return new WeakHashMap<>();
+		}
+	};
 
-	private static final String EXTRA_XML_INSTANCE_DETAILS = "xmlInstanceDetails";
+	private static final XCallback.ExtraKey<XMLInstanceDetails> EXTRA_XML_INSTANCE_DETAILS = new XCallback.ExtraKey<>("xmlInstanceDetails");
 	private static final ThreadLocal<LinkedList<MethodHookParam>> sIncludedLayouts = new ThreadLocal<LinkedList<MethodHookParam>>() {
 		@Override
 		protected LinkedList<MethodHookParam> initialValue() {
@@ -74,9 +102,12 @@ public class XResources extends XResourcesSuperClass {
 	private static final HashMap<String, Long> sResDirLastModified = new HashMap<>();
 	private static final HashMap<String, String> sResDirPackageNames = new HashMap<>();
 	private static ThreadLocal<Object> sLatestResKey = null;
+	private static Runnable sHookInstaller = null;
+	private static volatile Field sCachedXmlBlockIdsField = null;
 
 	private boolean mIsObjectInited;
 	private String mResDir;
+	private int mResDirIndex;
 	private String mPackageName;
 
 	/** Dummy, will never be called (objects are transferred to this class only). */
@@ -90,13 +121,14 @@ public class XResources extends XResourcesSuperClass {
 			throw new IllegalStateException("Object has already been initialized");
 
 		this.mResDir = resDir;
+		this.mResDirIndex = getResDirIndex(resDir);
 		this.mPackageName = getPackageName(resDir);
 
 		if (resDir != null) {
 			synchronized (sReplacementsCacheMap) {
 				mReplacementsCache = sReplacementsCacheMap.get(resDir);
 				if (mReplacementsCache == null) {
-					mReplacementsCache = new byte[128];
+					mReplacementsCache = new ResourceIdBitmap();
 					sReplacementsCacheMap.put(resDir, mReplacementsCache);
 				}
 			}
@@ -107,7 +139,7 @@ public class XResources extends XResourcesSuperClass {
 
 	/** @hide */
 	public boolean isFirstLoad() {
-		synchronized (sReplacements) {
+		synchronized (sReplacementsLock) {
 			if (mResDir == null)
 				return false;
 
@@ -122,14 +154,49 @@ public class XResources extends XResourcesSuperClass {
 				return true;
 
 			// file was changed meanwhile => remove old replacements
-			for (int i = 0; i < sReplacements.size(); i++) {
-				sReplacements.valueAt(i).remove(mResDir);
+			publishReplacements();
+			sReplacements = sReplacements.removeResDir(mResDirIndex);
+			mReplacementsCache.clear();
+			synchronized (sTranslatedResIds) {
+				sTranslatedResIds.clear();
 			}
-			Arrays.fill(mReplacementsCache, (byte) 0);
+			sDrawableCache.clear();
 			return true;
 		}
 	}
 
+	/**
+	 * Returns a small number which identifies the resource directory in replacement tables.
+	 * The framework resources ({@code null}) always have index 0.
+	 */
+	private static int getResDirIndex(String resDir) {
+		if (resDir == null)
+			return 0;
+
+		synchronized (sResDirIndexes) {
+			Integer index = sResDirIndexes.get(resDir);
+			if (index == null) {
+				index = sResDirIndexes.size() + 1;
+				sResDirIndexes.put(resDir, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Like {@link #getResDirIndex}, but returns -1 instead of assigning an index to an unknown
+	 * resource directory.
+	 */
+	private static int findResDirIndex(String resDir) {
+		if (resDir == null)
+			return 0;
+
+		synchronized (sResDirIndexes) {
+			Integer index = sResDirIndexes.get(resDir);
+			return (index != null) ? index : -1;
+		}
+	}
+
 	/** @hide */
 	public static void setPackageNameForResDir(String packageName, String resDir) {
 		synchronized (sResDirPackageNames) {
@@ -196,20 +263,39 @@ public class XResources extends XResourcesSuperClass {
 		return getPackageName(resDir);
 	}
 
+	/**
+	 * Sets the callback which installs the resource hooks. It's called at most once, as soon as
+	 * a system-wide replacement or layout hook is registered.
+	 * @hide
+	 */
+	public static void setHookInstaller(Runnable installer) {
+		synchronized (XResources.class) {
+			sHookInstaller = installer;
+		}
+	}
+
+	private static void ensureHooksInstalled() {
+		Runnable installer;
+		synchronized (XResources.class) {
+			installer = sHookInstaller;
+			sHookInstaller = null;
+		}
+		if (installer != null)
+			installer.run();
+	}
+
 	/** @hide */
-	public static void init(ThreadLocal<Object> latestResKey) throws Exception {
+	public static void init(ThreadLocal<Object> latestResKey, List<XC_MethodHook.Unhook> unhooks) throws Exception {
 		sLatestResKey = latestResKey;
 
-		findAndHookMethod(LayoutInflater.class, "inflate", XmlPullParser.class, ViewGroup.class, boolean.class, new XC_MethodHook() {
+		unhooks.add(findAndHookMethod(LayoutInflater.class, "inflate", XmlPullParser.class, ViewGroup.class, boolean.class, new XC_MethodHook() {
 			@Override
 			protected void afterHookedMethod(MethodHookParam param) throws Throwable {
 				if (param.hasThrowable())
 					return;
 
-				XMLInstanceDetails details;
-				synchronized (sXmlInstanceDetails) {
-					details = sXmlInstanceDetails.get(param.args[0]);
-				}
+				// layouts are inflated on the same thread which loaded them in getLayout()
+				XMLInstanceDetails details = sXmlInstanceDetails.get().get(param.args[0]);
 				if (details != null) {
 					LayoutInflatedParam liparam = new LayoutInflatedParam(details.callbacks);
 					liparam.view = (View) param.getResult();
@@ -219,7 +305,7 @@ public class XResources extends XResourcesSuperClass {
 					XCallback.callAll(liparam);
 				}
 			}
-		});
+		}));
 
 		final XC_MethodHook parseIncludeHook = new XC_MethodHook() {
 			@Override
@@ -235,7 +321,7 @@ public class XResources extends XResourcesSuperClass {
 					return;
 
 				// filled in by our implementation of getLayout()
-				XMLInstanceDetails details = (XMLInstanceDetails) param.getObjectExtra(EXTRA_XML_INSTANCE_DETAILS);
+				XMLInstanceDetails details = param.getExtra(EXTRA_XML_INSTANCE_DETAILS);
 				if (details != null) {
 					LayoutInflatedParam liparam = new LayoutInflatedParam(details.callbacks);
 					ViewGroup group = (ViewGroup) param.args[(Build.VERSION.SDK_INT < 23) ? 1 : 2];
@@ -248,14 +334,14 @@ public class XResources extends XResourcesSuperClass {
 			}
 		};
 		if (Build.VERSION.SDK_INT < 21) {
-			findAndHookMethod(LayoutInflater.class, "parseInclude", XmlPullParser.class, View.class,
-					AttributeSet.class, parseIncludeHook);
+			unhooks.add(findAndHookMethod(LayoutInflater.class, "parseInclude", XmlPullParser.class, View.class,
+					AttributeSet.class, parseIncludeHook));
 		} else if (Build.VERSION.SDK_INT < 23) {
-			findAndHookMethod(LayoutInflater.class, "parseInclude", XmlPullParser.class, View.class,
-					AttributeSet.class, boolean.class, parseIncludeHook);
+			unhooks.add(findAndHookMethod(LayoutInflater.class, "parseInclude", XmlPullParser.class, View.class,
+					AttributeSet.class, boolean.class, parseIncludeHook));
 		} else {
-			findAndHookMethod(LayoutInflater.class, "parseInclude", XmlPullParser.class, Context.class,
-					View.class, AttributeSet.class, parseIncludeHook);
+			unhooks.add(findAndHookMethod(LayoutInflater.class, "parseInclude", XmlPullParser.class, Context.class,
+					View.class, AttributeSet.class, parseIncludeHook));
 		}
 	}
 
@@ -310,20 +396,6 @@ public class XResources extends XResourcesSuperClass {
 				sysRes.getResourceEntryName(id));
 	}
 
-	private static void putResourceNames(String resDir, ResourceNames resNames) {
-		int id = resNames.id;
-		synchronized (sResourceNames) {
-			HashMap<String, ResourceNames> inner = sResourceNames.get(id);
-			if (inner == null) {
-				inner = new HashMap<>();
-				sResourceNames.put(id, inner);
-			}
-			synchronized (inner) {
-				inner.put(resDir, resNames);
-			}
-		}
-	}
-
 	// =======================================================
 	//   DEFINING REPLACEMENTS
 	// =======================================================
@@ -500,6 +572,22 @@ public class XResources extends XResourcesSuperClass {
 		setReplacement(id, replacement, this);
 	}
 
+	/**
+	 * Sets replacements for many resources of one package at once.
+	 *
+	 * <p>This is equivalent to calling {@link #setReplacement(String, String, String, Object)} for
+	 * each entry, but much faster for large numbers of replacements. All names are resolved first,
+	 * then the replacements are published together. If any of the resources doesn't exist, none
+	 * of the replacements is set.
+	 *
+	 * @param pkg The package name, e.g. {@code com.example.myapplication}.
+	 *            See {@link #getResourcePackageName}.
+	 * @param replacements Maps {@code type/name} (e.g. {@code string/app_name}) to the replacement.
+	 */
+	public void setReplacements(String pkg, Map<String, ?> replacements) {
+		setReplacements(this, pkg, replacements, this);
+	}
+
 	/**
 	 * Sets a replacement for an individual Android framework resource (in the {@code android} package).
 	 * See {@link #setSystemWideReplacement(String, String, String, Object)}.
@@ -555,7 +643,56 @@ public class XResources extends XResourcesSuperClass {
 		setReplacement(id, replacement, null);
 	}
 
-	private static void setReplacement(int id, Object replacement, XResources res) {
+	/**
+	 * Sets replacements for many Android framework resources at once.
+	 * See {@link #setSystemWideReplacement(String, String, String, Object)} and
+	 * {@link #setReplacements(String, Map)}.
+	 *
+	 * @param pkg The package name, should always be {@code android} here.
+	 *            See {@link #getResourcePackageName}.
+	 * @param replacements Maps {@code type/name} (e.g. {@code string/yes}) to the replacement.
+	 */
+	public static void setSystemWideReplacements(String pkg, Map<String, ?> replacements) {
+		setReplacements(getSystem(), pkg, replacements, null);
+	}
+
+	private static void setReplacements(Resources lookup, String pkg, Map<String, ?> replacements, XResources res) {
+		final int count = replacements.size();
+		if (res == null)
+			ensureHooksInstalled();
+
+		int[] ids = new int[count];
+		Object[] values = new Object[count];
+		int i = 0;
+		for (Map.Entry<String, ?> entry : replacements.entrySet()) {
+			String typeAndName = entry.getKey();
+			int slash = typeAndName.indexOf('/');
+			if (slash <= 0)
+				throw new IllegalArgumentException("Expected type/name, but got " + typeAndName);
+
+			int id = lookup.getIdentifier(typeAndName.substring(slash + 1), typeAndName.substring(0, slash), pkg);
+			if (id == 0)
+				throw new NotFoundException(pkg + ":" + typeAndName);
+			checkReplacement(id, entry.getValue(), res);
+			ids[i] = id;
+			values[i] = entry.getValue();
+			i++;
+		}
+
+		// Cache that we have replacements for these IDs
+		sSystemReplacementsCache.addAll(ids, count, 0, 0x7f000000);
+		// The system resources don't have a cache for app IDs, but checkReplacement() rejects them anyway
+		if (res != null && res.mReplacementsCache != null)
+			res.mReplacementsCache.addAll(ids, count, 0x7f000000, Integer.MAX_VALUE);
+
+		int resDirIndex = (res != null) ? res.mResDirIndex : 0;
+		synchronized (sReplacementsLock) {
+			for (i = 0; i < count; i++)
+				addPendingReplacement(ids[i], resDirIndex, values[i]);
+		}
+	}
+
+	private static void checkReplacement(int id, Object replacement, XResources res) {
 		String resDir = (res != null) ? res.mResDir : null;
 		if (id == 0)
 			throw new IllegalArgumentException("id 0 is not an allowed resource identifier");
@@ -564,28 +701,66 @@ public class XResources extends XResourcesSuperClass {
 
 		if (replacement instanceof Drawable)
 			throw new IllegalArgumentException("Drawable replacements are deprecated since Xposed 2.1. Use DrawableLoader instead.");
+	}
 
-		// Cache that we have a replacement for this ID, false positives are accepted to save memory.
-		if (id < 0x7f000000) {
-			int cacheKey = (id & 0x00070000) >> 11 | (id & 0xf8) >> 3;
-			synchronized (sSystemReplacementsCache) {
-				sSystemReplacementsCache[cacheKey] |= 1 << (id & 7);
-			}
-		} else {
-			int cacheKey = (id & 0x00070000) >> 12 | (id & 0x78) >> 3;
-			synchronized (res.mReplacementsCache) {
-				res.mReplacementsCache[cacheKey] |= 1 << (id & 7);
-			}
+	private static void setReplacement(int id, Object replacement, XResources res) {
+		checkReplacement(id, replacement, res);
+		if (res == null)
+			ensureHooksInstalled();
+
+		// Cache that we have a replacement for this ID
+		if (id < 0x7f000000)
+			sSystemReplacementsCache.add(id);
+		else
+			res.mReplacementsCache.add(id);
+
+		int resDirIndex = (res != null) ? res.mResDirIndex : 0;
+		synchronized (sReplacementsLock) {
+			addPendingReplacement(id, resDirIndex, replacement);
 		}
+	}
 
-		synchronized (sReplacements) {
-			HashMap<String, Object> inner = sReplacements.get(id);
-			if (inner == null) {
-				inner = new HashMap<>();
-				sReplacements.put(id, inner);
+	/**
+	 * Queues a replacement to be published with the next lookup. Copying the table for every
+	 * single replacement would make registering many of them quadratic.
+	 * Must be called while holding {@link #sReplacementsLock}.
+	 */
+	private static void addPendingReplacement(int id, int resDirIndex, Object replacement) {
+		if (sPendingCount == sPendingIds.length) {
+			int capacity = sPendingCount * 2;
+			sPendingIds = Arrays.copyOf(sPendingIds, capacity);
+			sPendingResDirs = Arrays.copyOf(sPendingResDirs, capacity);
+			sPendingValues = Arrays.copyOf(sPendingValues, capacity);
+		}
+		sPendingIds[sPendingCount] = id;
+		sPendingResDirs[sPendingCount] = resDirIndex;
+		sPendingValues[sPendingCount] = replacement;
+		sPendingCount++;
+		sHasPendingReplacements = true;
+	}
+
+	/**
+	 * Copies the pending replacements into a new table, all at once.
+	 * Must be called while holding {@link #sReplacementsLock}.
+	 */
+	private static void publishReplacements() {
+		if (sPendingCount == 0)
+			return;
+
+		sReplacements = sReplacements.putAll(sPendingIds, sPendingResDirs, sPendingValues, sPendingCount);
+		Arrays.fill(sPendingValues, 0, sPendingCount, null);
+		sPendingCount = 0;
+		sHasPendingReplacements = false;
+	}
+
+	/** Returns the current replacements table, publishing pending replacements first. */
+	private static ResourceIdTable getReplacements() {
+		if (sHasPendingReplacements) {
+			synchronized (sReplacementsLock) {
+				publishReplacements();
 			}
-			inner.put(resDir, replacement);
 		}
+		return sReplacements;
 	}
 
 	// =======================================================
@@ -598,29 +773,19 @@ public class XResources extends XResourcesSuperClass {
 
 		// Check the cache whether it's worth looking for replacements
 		if (id < 0x7f000000) {
-			int cacheKey = (id & 0x00070000) >> 11 | (id & 0xf8) >> 3;
-			if ((sSystemReplacementsCache[cacheKey] & (1 << (id & 7))) == 0)
+			if (!sSystemReplacementsCache.contains(id))
 				return null;
 		} else if (mResDir != null) {
-			int cacheKey = (id & 0x00070000) >> 12 | (id & 0x78) >> 3;
-			if ((mReplacementsCache[cacheKey] & (1 << (id & 7))) == 0)
+			if (!mReplacementsCache.contains(id))
 				return null;
 		}
 
-		HashMap<String, Object> inner;
-		synchronized (sReplacements) {
-			inner = sReplacements.get(id);
-		}
-
-		if (inner == null)
-			return null;
-
-		synchronized (inner) {
-			Object result = inner.get(mResDir);
-			if (result != null || mResDir == null)
-				return result;
-			return inner.get(null);
-		}
+		// No locking needed, modifications replace the whole table
+		ResourceIdTable replacements = getReplacements();
+		Object result = replacements.get(id, mResDirIndex);
+		if (result != null || mResDir == null)
+			return result;
+		return replacements.get(id, 0);
 	}
 
 	/** @hide */
@@ -681,15 +846,7 @@ public class XResources extends XResourcesSuperClass {
 		if (replacement instanceof ColorStateList) {
 			return (ColorStateList) replacement;
 		} else if (replacement instanceof Integer) {
-			int color = (Integer) replacement;
-			synchronized (sColorStateListCache) {
-				ColorStateList result = sColorStateListCache.get(color);
-				if (result == null) {
-					result = ColorStateList.valueOf(color);
-					sColorStateListCache.put(color, result);
-				}
-				return result;
-			}
+			return sColorStateListCache.get((Integer) replacement);
 		} else if (replacement instanceof XResForwarder) {
 			Resources repRes = ((XResForwarder) replacement).getResources();
 			int repId = ((XResForwarder) replacement).getId();
@@ -740,25 +897,70 @@ public class XResources extends XResourcesSuperClass {
 		return super.getDimensionPixelSize(id);
 	}
 
+	/**
+	 * Creates the drawable for a replacement, or returns {@code null} if there is no usable one.
+	 * Results of {@link DrawableLoader}s and {@link XResForwarder}s are shared via the drawable
+	 * cache if it has been enabled with {@link #setDrawableCacheSize}.
+	 */
+	private Drawable getReplacementDrawable(Object replacement, int id, int density, boolean forDensity) {
+		if (replacement instanceof Integer)
+			return new ColorDrawable((Integer) replacement);
+		else if (!(replacement instanceof DrawableLoader) && !(replacement instanceof XResForwarder))
+			return null;
+
+		DrawableKey key = null;
+		if (sDrawableCache.isEnabled()) {
+			// Forwarded drawables also depend on the configuration of the module resources
+			Configuration repConfig = (replacement instanceof XResForwarder)
+					? ((XResForwarder) replacement).getResources().getConfiguration() : null;
+			key = new DrawableKey(mResDirIndex, id, forDensity ? density : 0, getConfiguration(), repConfig);
+			Drawable.ConstantState state = sDrawableCache.get(key, replacement);
+			if (state != null)
+				return state.newDrawable(this);
+		}
+
+		Drawable result = null;
+		if (replacement instanceof DrawableLoader) {
+			try {
+				result = forDensity
+						? ((DrawableLoader) replacement).newDrawableForDensity(this, id, density)
+						: ((DrawableLoader) replacement).newDrawable(this, id);
+			} catch (Throwable t) { XposedBridge.log(t); }
+		} else {
+			Resources repRes = ((XResForwarder) replacement).getResources();
+			int repId = ((XResForwarder) replacement).getId();
+			result = forDensity ? repRes.getDrawableForDensity(repId, density) : repRes.getDrawable(repId);
+		}
+
+		if (key != null && result != null)
+			sDrawableCache.put(key.copy(), replacement, result);
+		return result;
+	}
+
+	/**
+	 * Enables a shared cache for drawables created by {@link DrawableLoader}s and forwarded
+	 * resources (see {@link #addResource}). Instead of creating a new drawable for every request,
+	 * new instances are created from the {@link Drawable.ConstantState} of earlier results.
+	 *
+	 * <p>The cache is disabled by default. It should only be enabled if the drawables returned by
+	 * the loaders depend on nothing but the resource ID, the density and the UI mode. The least
+	 * recently used entries are removed when the estimated size exceeds the limit.
+	 *
+	 * @param maxBytes The maximum estimated size of the cached drawables, {@code 0} to disable it.
+	 */
+	public static void setDrawableCacheSize(int maxBytes) {
+		sDrawableCache.setMaxBytes(maxBytes);
+	}
+
 	/** @hide */
 	@Override
 	public Drawable getDrawable(int id) throws NotFoundException {
 		try {
 			if (incrementMethodDepth("getDrawable") == 1) {
 				Object replacement = getReplacement(id);
-				if (replacement instanceof DrawableLoader) {
-					try {
-						Drawable result = ((DrawableLoader) replacement).newDrawable(this, id);
-						if (result != null)
-							return result;
-					} catch (Throwable t) { XposedBridge.log(t); }
-				} else if (replacement instanceof Integer) {
-					return new ColorDrawable((Integer) replacement);
-				} else if (replacement instanceof XResForwarder) {
-					Resources repRes = ((XResForwarder) replacement).getResources();
-					int repId = ((XResForwarder) replacement).getId();
-					return repRes.getDrawable(repId);
-				}
+				Drawable result = getReplacementDrawable(replacement, id, 0, false);
+				if (result != null)
+					return result;
 			}
 			return super.getDrawable(id);
 		} finally {
@@ -772,19 +974,9 @@ public class XResources extends XResourcesSuperClass {
 		try {
 			if (incrementMethodDepth("getDrawable") == 1) {
 				Object replacement = getReplacement(id);
-				if (replacement instanceof DrawableLoader) {
-					try {
-						Drawable result = ((DrawableLoader) replacement).newDrawable(this, id);
-						if (result != null)
-							return result;
-					} catch (Throwable t) { XposedBridge.log(t); }
-				} else if (replacement instanceof Integer) {
-					return new ColorDrawable((Integer) replacement);
-				} else if (replacement instanceof XResForwarder) {
-					Resources repRes = ((XResForwarder) replacement).getResources();
-					int repId = ((XResForwarder) replacement).getId();
-					return repRes.getDrawable(repId);
-				}
+				Drawable result = getReplacementDrawable(replacement, id, 0, false);
+				if (result != null)
+					return result;
 			}
 			return super.getDrawable(id, theme);
 		} finally {
@@ -798,19 +990,9 @@ public class XResources extends XResourcesSuperClass {
 		try {
 			if (incrementMethodDepth("getDrawable") == 1) {
 				Object replacement = getReplacement(id);
-				if (replacement instanceof DrawableLoader) {
-					try {
-						Drawable result = ((DrawableLoader) replacement).newDrawable(this, id);
-						if (result != null)
-							return result;
-					} catch (Throwable t) { XposedBridge.log(t); }
-				} else if (replacement instanceof Integer) {
-					return new ColorDrawable((Integer) replacement);
-				} else if (replacement instanceof XResForwarder) {
-					Resources repRes = ((XResForwarder) replacement).getResources();
-					int repId = ((XResForwarder) replacement).getId();
-					return repRes.getDrawable(repId);
-				}
+				Drawable result = getReplacementDrawable(replacement, id, 0, false);
+				if (result != null)
+					return result;
 			}
 			return super.getDrawable(id, theme, supportComposedIcons);
 		} finally {
@@ -824,19 +1006,9 @@ public class XResources extends XResourcesSuperClass {
 		try {
 			if (incrementMethodDepth("getDrawableForDensity") == 1) {
 				Object replacement = getReplacement(id);
-				if (replacement instanceof DrawableLoader) {
-					try {
-						Drawable result = ((DrawableLoader) replacement).newDrawableForDensity(this, id, density);
-						if (result != null)
-							return result;
-					} catch (Throwable t) { XposedBridge.log(t); }
-				} else if (replacement instanceof Integer) {
-					return new ColorDrawable((Integer) replacement);
-				} else if (replacement instanceof XResForwarder) {
-					Resources repRes = ((XResForwarder) replacement).getResources();
-					int repId = ((XResForwarder) replacement).getId();
-					return repRes.getDrawableForDensity(repId, density);
-				}
+				Drawable result = getReplacementDrawable(replacement, id, density, true);
+				if (result != null)
+					return result;
 			}
 			return super.getDrawableForDensity(id, density);
 		} finally {
@@ -850,19 +1022,9 @@ public class XResources extends XResourcesSuperClass {
 		try {
 			if (incrementMethodDepth("getDrawableForDensity") == 1) {
 				Object replacement = getReplacement(id);
-				if (replacement instanceof DrawableLoader) {
-					try {
-						Drawable result = ((DrawableLoader) replacement).newDrawableForDensity(this, id, density);
-						if (result != null)
-							return result;
-					} catch (Throwable t) { XposedBridge.log(t); }
-				} else if (replacement instanceof Integer) {
-					return new ColorDrawable((Integer) replacement);
-				} else if (replacement instanceof XResForwarder) {
-					Resources repRes = ((XResForwarder) replacement).getResources();
-					int repId = ((XResForwarder) replacement).getId();
-					return repRes.getDrawableForDensity(repId, density);
-				}
+				Drawable result = getReplacementDrawable(replacement, id, density, true);
+				if (result != null)
+					return result;
 			}
 			return super.getDrawableForDensity(id, density, theme);
 		} finally {
@@ -876,19 +1038,9 @@ public class XResources extends XResourcesSuperClass {
 		try {
 			if (incrementMethodDepth("getDrawableForDensity") == 1) {
 				Object replacement = getReplacement(id);
-				if (replacement instanceof DrawableLoader) {
-					try {
-						Drawable result = ((DrawableLoader) replacement).newDrawableForDensity(this, id, density);
-						if (result != null)
-							return result;
-					} catch (Throwable t) { XposedBridge.log(t); }
-				} else if (replacement instanceof Integer) {
-					return new ColorDrawable((Integer) replacement);
-				} else if (replacement instanceof XResForwarder) {
-					Resources repRes = ((XResForwarder) replacement).getResources();
-					int repId = ((XResForwarder) replacement).getId();
-					return repRes.getDrawableForDensity(repId, density);
-				}
+				Drawable result = getReplacementDrawable(replacement, id, density, true);
+				if (result != null)
+					return result;
 			}
 			return super.getDrawableForDensity(id, density, theme, supportComposedIcons);
 		} finally {
@@ -959,49 +1111,15 @@ public class XResources extends XResourcesSuperClass {
 		}
 
 		// Check whether this layout is hooked
-		HashMap<String, CopyOnWriteSortedSet<XC_LayoutInflated>> inner;
-		synchronized (sLayoutCallbacks) {
-			inner = sLayoutCallbacks.get(id);
-		}
-		if (inner != null) {
-			CopyOnWriteSortedSet<XC_LayoutInflated> callbacks;
-			synchronized (inner) {
-				callbacks = inner.get(mResDir);
-				if (callbacks == null && mResDir != null)
-					callbacks = inner.get(null);
-			}
-			if (callbacks != null) {
-				String variant = "layout";
-				TypedValue value = (TypedValue) getObjectField(this, "mTmpValue");
-				getValue(id, value, true);
-				if (value.type == TypedValue.TYPE_STRING) {
-					String[] components = value.string.toString().split("/", 3);
-					if (components.length == 3)
-						variant = components[1];
-					else
-						XposedBridge.log("Unexpected resource path \"" + value.string.toString()
-								+ "\" for resource id 0x" + Integer.toHexString(id));
-				} else {
-					XposedBridge.log(new NotFoundException("Could not find file name for resource id 0x") + Integer.toHexString(id));
-				}
+		LayoutHook hook = getLayoutHook(id);
+		if (hook != null) {
+			XMLInstanceDetails details = new XMLInstanceDetails(hook.resNames, getLayoutVariant(hook, id), hook.callbacks);
+			sXmlInstanceDetails.get().put(result, details);
 
-				synchronized (sXmlInstanceDetails) {
-					synchronized (sResourceNames) {
-						HashMap<String, ResourceNames> resNamesInner = sResourceNames.get(id);
-						if (resNamesInner != null) {
-							synchronized (resNamesInner) {
-								XMLInstanceDetails details = new XMLInstanceDetails(resNamesInner.get(mResDir), variant, callbacks);
-								sXmlInstanceDetails.put(result, details);
-
-								// if we were called inside LayoutInflater.parseInclude, store the details for it
-								MethodHookParam top = sIncludedLayouts.get().peek();
-								if (top != null)
-									top.setObjectExtra(EXTRA_XML_INSTANCE_DETAILS, details);
-							}
-						}
-					}
-				}
-			}
+			// if we were called inside LayoutInflater.parseInclude, store the details for it
+			MethodHookParam top = sIncludedLayouts.get().peek();
+			if (top != null)
+				top.setExtra(EXTRA_XML_INSTANCE_DETAILS, details);
 		}
 
 		return result;
@@ -1116,8 +1234,62 @@ public class XResources extends XResourcesSuperClass {
 		return super.getXml(id);
 	}
 
+	private LayoutHook getLayoutHook(int id) {
+		// No locking needed, modifications replace the whole table
+		ResourceIdTable layoutHooks = sLayoutHooks;
+		LayoutHook hook = (LayoutHook) layoutHooks.get(id, mResDirIndex);
+		if (hook == null && mResDir != null)
+			hook = (LayoutHook) layoutHooks.get(id, 0);
+		return hook;
+	}
+
+	/**
+	 * Determines the name of the directory from which the layout is loaded, e.g. {@code layout-land}.
+	 * The result is remembered for the last configuration in which it was used.
+	 */
+	private String getLayoutVariant(LayoutHook hook, int id) {
+		Configuration config = getConfiguration();
+		LayoutVariant cached = hook.variant;
+		if (cached != null && cached.config.equals(config))
+			return cached.name;
+
+		String variant = "layout";
+		TypedValue value = new TypedValue();
+		getValue(id, value, true);
+		if (value.type == TypedValue.TYPE_STRING) {
+			String[] components = value.string.toString().split("/", 3);
+			if (components.length == 3)
+				variant = components[1];
+			else
+				XposedBridge.log("Unexpected resource path \"" + value.string.toString()
+						+ "\" for resource id 0x" + Integer.toHexString(id));
+		} else {
+			XposedBridge.log(new NotFoundException("Could not find file name for resource id 0x") + Integer.toHexString(id));
+		}
+
+		hook.variant = new LayoutVariant(new Configuration(config), variant);
+		return variant;
+	}
+
+	private static Field getCachedXmlBlockIdsField() {
+		// Resolved only once, this is called for every forwarded XML resource
+		Field field = sCachedXmlBlockIdsField;
+		if (field == null) {
+			field = findField(Resources.class, "mCachedXmlBlockIds");
+			sCachedXmlBlockIdsField = field;
+		}
+		return field;
+	}
+
 	private static boolean isXmlCached(Resources res, int id) {
-		int[] mCachedXmlBlockIds = (int[]) getObjectField(res, "mCachedXmlBlockIds");
+		int[] mCachedXmlBlockIds;
+		try {
+			mCachedXmlBlockIds = (int[]) getCachedXmlBlockIdsField().get(res);
+		} catch (IllegalAccessException e) {
+			// should not happen
+			XposedBridge.log(e);
+			throw new IllegalAccessError(e.getMessage());
+		}
 		synchronized (mCachedXmlBlockIds) {
 			for (int cachedId : mCachedXmlBlockIds) {
 				if (cachedId == id)
@@ -1138,42 +1310,102 @@ public class XResources extends XResourcesSuperClass {
 	 * the compiled XML file in the memory.
 	 */
 	private static int translateResId(int id, XResources origRes, Resources repRes) {
-		try {
-			String entryName = repRes.getResourceEntryName(id);
-			String entryType = repRes.getResourceTypeName(id);
-			String origPackage = origRes.mPackageName;
-			int origResId = 0;
+		String origPackage = origRes.mPackageName;
+		TranslatedResId translated = getTranslatedResId(repRes, id, origPackage);
+		if (translated == null) {
 			try {
-				// look for a resource with the same name and type in the original package
-				origResId = origRes.getIdentifier(entryName, entryType, origPackage);
-			} catch (NotFoundException ignored) {}
+				translated = resolveResId(id, origRes, repRes);
+			} catch (Exception e) {
+				XposedBridge.log(e);
+				return id;
+			}
+			putTranslatedResId(repRes, id, origPackage, translated);
+		}
 
-			boolean repResDefined = false;
-			try {
-				final TypedValue tmpValue = new TypedValue();
-				repRes.getValue(id, tmpValue, false);
-				// if a resource has not been defined (i.e. only a resource ID has been created), it will equal "false"
-				// this means a boolean "false" value is not detected of it is directly referenced in an XML file
-				repResDefined = !(tmpValue.type == TypedValue.TYPE_INT_BOOLEAN && tmpValue.data == 0);
-			} catch (NotFoundException ignored) {}
-
-			if (!repResDefined && origResId == 0 && !entryType.equals("id")) {
-				XposedBridge.log(entryType + "/" + entryName + " is neither defined in module nor in original resources");
-				return 0;
+		// IDs will never be loaded, no need to set a replacement
+		if (translated.forward && !isForwardedTo(origRes, translated.origResId, repRes, id))
+			origRes.setReplacement(translated.origResId, new XResForwarder(repRes, id));
+
+		return translated.origResId;
+	}
+
+	/**
+	 * Does the actual name-based lookup for {@link #translateResId}. The result only depends on the
+	 * module resources and the package name of the original resources, so it can be memorized.
+	 */
+	private static TranslatedResId resolveResId(int id, XResources origRes, Resources repRes) {
+		String entryName = repRes.getResourceEntryName(id);
+		String entryType = repRes.getResourceTypeName(id);
+		String origPackage = origRes.mPackageName;
+		int origResId = 0;
+		try {
+			// look for a resource with the same name and type in the original package
+			origResId = origRes.getIdentifier(entryName, entryType, origPackage);
+		} catch (NotFoundException ignored) {}
+
+		boolean repResDefined = false;
+		try {
+			final TypedValue tmpValue = new TypedValue();
+			repRes.getValue(id, tmpValue, false);
+			// if a resource has not been defined (i.e. only a resource ID has been created), it will equal "false"
+			// this means a boolean "false" value is not detected of it is directly referenced in an XML file
+			repResDefined = !(tmpValue.type == TypedValue.TYPE_INT_BOOLEAN && tmpValue.data == 0);
+		} catch (NotFoundException ignored) {}
+
+		if (!repResDefined && origResId == 0 && !entryType.equals("id")) {
+			XposedBridge.log(entryType + "/" + entryName + " is neither defined in module nor in original resources");
+			return new TranslatedResId(0, false);
+		}
+
+		// exists only in module, so create a fake resource id
+		if (origResId == 0)
+			origResId = getFakeResId(repRes, id);
+
+		return new TranslatedResId(origResId, repResDefined && !entryType.equals("id"));
+	}
+
+	private static TranslatedResId getTranslatedResId(Resources repRes, int id, String origPackage) {
+		synchronized (sTranslatedResIds) {
+			HashMap<String, SparseArray<TranslatedResId>> byPackage = sTranslatedResIds.get(repRes);
+			if (byPackage == null)
+				return null;
+			SparseArray<TranslatedResId> ids = byPackage.get(origPackage);
+			return (ids != null) ? ids.get(id) : null;
+		}
+	}
+
+	private static void putTranslatedResId(Resources repRes, int id, String origPackage, TranslatedResId translated) {
+		synchronized (sTranslatedResIds) {
+			HashMap<String, SparseArray<TranslatedResId>> byPackage = sTranslatedResIds.get(repRes);
+			if (byPackage == null) {
+				byPackage = new HashMap<>();
+				sTranslatedResIds.put(repRes, byPackage);
+			}
+			SparseArray<TranslatedResId> ids = byPackage.get(origPackage);
+			if (ids == null) {
+				ids = new SparseArray<>();
+				byPackage.put(origPackage, ids);
 			}
+			ids.put(id, translated);
+		}
+	}
 
-			// exists only in module, so create a fake resource id
-			if (origResId == 0)
-				origResId = getFakeResId(repRes, id);
+	private static boolean isForwardedTo(XResources origRes, int origResId, Resources repRes, int id) {
+		Object replacement = getReplacements().get(origResId, origRes.mResDirIndex);
+		if (!(replacement instanceof XResForwarder))
+			return false;
+		XResForwarder forwarder = (XResForwarder) replacement;
+		return forwarder.getResources() == repRes && forwarder.getId() == id;
+	}
 
-			// IDs will never be loaded, no need to set a replacement
-			if (repResDefined && !entryType.equals("id"))
-				origRes.setReplacement(origResId, new XResForwarder(repRes, id));
+	/** Result of {@link #translateResId}, cached per module resources and original package. */
+	private static final class TranslatedResId {
+		private final int origResId;
+		private final boolean forward;
 
-			return origResId;
-		} catch (Exception e) {
-			XposedBridge.log(e);
-			return id;
+		private TranslatedResId(int origResId, boolean forward) {
+			this.origResId = origResId;
+			this.forward = forward;
 		}
 	}
 
@@ -1223,8 +1455,8 @@ public class XResources extends XResourcesSuperClass {
 	 */
 	public int addResource(Resources res, int id) {
 		int fakeId = getFakeResId(res, id);
-		synchronized (sReplacements) {
-			if (sReplacements.indexOfKey(fakeId) < 0)
+		synchronized (sReplacementsLock) {
+			if (!getReplacements().containsKey(fakeId))
 				setReplacement(fakeId, new XResForwarder(res, id));
 		}
 		return fakeId;
@@ -1244,6 +1476,427 @@ public class XResources extends XResourcesSuperClass {
 		return origAttrId;
 	}
 
+	// =======================================================
+	//   ResourceIdTable class
+	// =======================================================
+	/**
+	 * Immutable hash table (open addressing) which maps resource IDs to one value per resource
+	 * directory. Resource directories are identified by their index, see {@link #getResDirIndex}.
+	 *
+	 * <p>Modifications return a new table, which is then published via a volatile field. That way,
+	 * lookups don't need any locks. Writers must synchronize with each other.
+	 */
+	private static final class ResourceIdTable {
+		private static final Object[] NO_VALUES = new Object[0];
+		static final ResourceIdTable EMPTY = new ResourceIdTable(new int[16], new Object[16][], 0);
+
+		private final int[] mKeys; // 0 means empty, as it's not a valid resource ID
+		private final Object[][] mValues;
+		private final int mSize;
+
+		private ResourceIdTable(int[] keys, Object[][] values, int size) {
+			mKeys = keys;
+			mValues = values;
+			mSize = size;
+		}
+
+		private static int hash(int id) {
+			int h = id * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		private int indexOf(int id) {
+			final int[] keys = mKeys;
+			final int mask = keys.length - 1;
+			for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+				int key = keys[i];
+				if (key == id)
+					return i;
+				else if (key == 0)
+					return -1;
+			}
+		}
+
+		/** Returns the value for an ID and resource directory, or {@code null}. */
+		public Object get(int id, int resDirIndex) {
+			int index = indexOf(id);
+			if (index < 0)
+				return null;
+			Object[] values = mValues[index];
+			return (resDirIndex < values.length) ? values[resDirIndex] : null;
+		}
+
+		/** Returns whether there is any value for the ID, no matter for which resource directory. */
+		public boolean containsKey(int id) {
+			int index = indexOf(id);
+			if (index < 0)
+				return false;
+			for (Object value : mValues[index]) {
+				if (value != null)
+					return true;
+			}
+			return false;
+		}
+
+		/** Returns a copy of this table with the given value set. {@code null} removes the value. */
+		public ResourceIdTable put(int id, int resDirIndex, Object value) {
+			return putAll(new int[] { id }, new int[] { resDirIndex }, new Object[] { value }, 1);
+		}
+
+		/** Like {@link #put}, but for the first {@code count} entries of the arrays. */
+		public ResourceIdTable putAll(int[] ids, int[] resDirIndexes, Object[] values, int count) {
+			int capacity = mKeys.length;
+			while ((mSize + count) * 2 > capacity)
+				capacity *= 2;
+
+			int[] keys;
+			Object[][] valueArrays;
+			int size = mSize;
+			if (capacity == mKeys.length) {
+				keys = mKeys.clone();
+				valueArrays = mValues.clone();
+			} else {
+				keys = new int[capacity];
+				valueArrays = new Object[capacity][];
+				for (int i = 0; i < mKeys.length; i++) {
+					if (mKeys[i] != 0)
+						insert(keys, valueArrays, mKeys[i], mValues[i]);
+				}
+			}
+
+			for (int i = 0; i < count; i++) {
+				final int id = ids[i];
+				final int mask = keys.length - 1;
+				int index = hash(id) & mask;
+				while (keys[index] != 0 && keys[index] != id)
+					index = (index + 1) & mask;
+
+				Object[] old = (keys[index] == id) ? valueArrays[index] : NO_VALUES;
+				if (keys[index] == 0) {
+					if (values[i] == null)
+						continue;
+					keys[index] = id;
+					size++;
+				}
+
+				// the value arrays might be shared with older tables, so always copy them
+				final int resDirIndex = resDirIndexes[i];
+				Object[] newValues = Arrays.copyOf(old, Math.max(old.length, resDirIndex + 1));
+				newValues[resDirIndex] = values[i];
+				valueArrays[index] = newValues;
+			}
+
+			return new ResourceIdTable(keys, valueArrays, size);
+		}
+
+		/** Returns a copy of this table without any values for the given resource directory. */
+		public ResourceIdTable removeResDir(int resDirIndex) {
+			Object[][] valueArrays = mValues.clone();
+			for (int i = 0; i < valueArrays.length; i++) {
+				Object[] values = valueArrays[i];
+				if (values != null && resDirIndex < values.length && values[resDirIndex] != null) {
+					values = values.clone();
+					values[resDirIndex] = null;
+					valueArrays[i] = values;
+				}
+			}
+			return new ResourceIdTable(mKeys, valueArrays, mSize);
+		}
+
+		private static void insert(int[] keys, Object[][] valueArrays, int id, Object[] values) {
+			final int mask = keys.length - 1;
+			int index = hash(id) & mask;
+			while (keys[index] != 0)
+				index = (index + 1) & mask;
+			keys[index] = id;
+			valueArrays[index] = values;
+		}
+	}
+
+	// =======================================================
+	//   ResourceIdBitmap class
+	// =======================================================
+	/**
+	 * Exact set of resource IDs, with one bit per entry for each package and type.
+	 *
+	 * <p>Lookups don't need any locks. Bits are only set by writers holding the lock, and arrays
+	 * are only published after they have been filled. A concurrent lookup might not see a bit
+	 * which is being set in that moment, but it never sees bits that haven't been set.
+	 */
+	private static final class ResourceIdBitmap {
+		private final int[][][] mBits = new int[128][][]; // [package][type][entry / 32]
+
+		/** Returns whether the ID has been added to the set. */
+		public boolean contains(int id) {
+			int[][] types = mBits[id >>> 24];
+			if (types == null)
+				return false;
+			int[] words = types[(id >>> 16) & 0xff];
+			if (words == null)
+				return false;
+			int entry = id & 0xffff;
+			int word = entry >>> 5;
+			return word < words.length && (words[word] & (1 << (entry & 31))) != 0;
+		}
+
+		/** Adds an ID to the set. Only positive IDs are supported. */
+		public synchronized void add(int id) {
+			int[][] types = mBits[id >>> 24];
+			if (types == null) {
+				types = new int[256][];
+				mBits[id >>> 24] = types;
+			}
+
+			final int type = (id >>> 16) & 0xff;
+			final int entry = id & 0xffff;
+			final int word = entry >>> 5;
+			int[] words = types[type];
+			if (words == null || word >= words.length) {
+				// grow exponentially, but not beyond the maximum entry index
+				int length = (words == null) ? 4 : words.length * 2;
+				while (length <= word)
+					length *= 2;
+				int[] newWords = new int[Math.min(length, 0x10000 >>> 5)];
+				if (words != null)
+					System.arraycopy(words, 0, newWords, 0, words.length);
+				newWords[word] |= 1 << (entry & 31);
+				types[type] = newWords;
+			} else {
+				words[word] |= 1 << (entry & 31);
+			}
+		}
+
+		/** Adds those of the first {@code count} IDs which are in the range {@code [from, to)}. */
+		public synchronized void addAll(int[] ids, int count, int from, int to) {
+			for (int i = 0; i < count; i++) {
+				if (ids[i] >= from && ids[i] < to)
+					add(ids[i]);
+			}
+		}
+
+		/** Removes all IDs from the set. */
+		public synchronized void clear() {
+			Arrays.fill(mBits, null);
+		}
+	}
+
+	// =======================================================
+	//   ColorStateListCache class
+	// =======================================================
+	/**
+	 * Bounded cache for {@link ColorStateList} objects created for color replacements.
+	 *
+	 * <p>Colors are distributed to several independently locked stripes, each of them evicting
+	 * the least recently used entry when it's full.
+	 */
+	private static final class ColorStateListCache {
+		private final Stripe[] mStripes;
+
+		private ColorStateListCache(int stripes, final int entriesPerStripe) {
+			mStripes = new Stripe[stripes];
+			for (int i = 0; i < stripes; i++)
+				mStripes[i] = new Stripe(entriesPerStripe);
+		}
+
+		/** Returns a cached instance for the given color, creating it if necessary. */
+		public ColorStateList get(int color) {
+			int h = color * 0x9E3779B9;
+			Stripe stripe = mStripes[((h ^ (h >>> 16)) & 0x7fffffff) % mStripes.length];
+			synchronized (stripe) {
+				ColorStateList result = stripe.get(color);
+				if (result != null) {
+					stripe.mHits++;
+					return result;
+				}
+				stripe.mMisses++;
+				result = ColorStateList.valueOf(color);
+				stripe.put(color, result);
+				return result;
+			}
+		}
+
+		public long getHitCount() {
+			long hits = 0;
+			for (Stripe stripe : mStripes) {
+				synchronized (stripe) {
+					hits += stripe.mHits;
+				}
+			}
+			return hits;
+		}
+
+		public long getMissCount() {
+			long misses = 0;
+			for (Stripe stripe : mStripes) {
+				synchronized (stripe) {
+					misses += stripe.mMisses;
+				}
+			}
+			return misses;
+		}
+
+		private static final class Stripe extends LinkedHashMap<Integer, ColorStateList> {
+			private final int mMaxEntries;
+			private long mHits = 0;
+			private long mMisses = 0;
+
+			private Stripe(int maxEntries) {
+				super(16, 0.75f, true);
+				mMaxEntries = maxEntries;
+			}
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, ColorStateList> eldest) {
+				return size() > mMaxEntries;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of color replacements that were served from the {@link ColorStateList} cache.
+	 * @hide
+	 */
+	public static long getColorStateListCacheHitCount() {
+		return sColorStateListCache.getHitCount();
+	}
+
+	/**
+	 * Returns the number of {@link ColorStateList} objects created for color replacements.
+	 * @hide
+	 */
+	public static long getColorStateListCacheMissCount() {
+		return sColorStateListCache.getMissCount();
+	}
+
+	// =======================================================
+	//   DrawableCache class
+	// =======================================================
+	/**
+	 * Byte-budgeted LRU cache for the constant states of replacement drawables.
+	 */
+	private static final class DrawableCache {
+		// access-ordered, i.e. the least recently used entry comes first
+		private final LinkedHashMap<DrawableKey, CachedDrawable> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+		private volatile int mMaxBytes = 0;
+		private int mBytes = 0;
+
+		public boolean isEnabled() {
+			return mMaxBytes > 0;
+		}
+
+		public synchronized void setMaxBytes(int maxBytes) {
+			mMaxBytes = maxBytes;
+			trimToSize();
+		}
+
+		/** Returns the cached state, but only if it was created by the same replacement. */
+		public synchronized Drawable.ConstantState get(DrawableKey key, Object replacement) {
+			CachedDrawable cached = mEntries.get(key);
+			return (cached != null && cached.replacement == replacement) ? cached.state : null;
+		}
+
+		public void put(DrawableKey key, Object replacement, Drawable drawable) {
+			Drawable.ConstantState state = drawable.getConstantState();
+			if (state == null)
+				return;
+
+			int bytes = estimateSize(drawable);
+			synchronized (this) {
+				if (bytes > mMaxBytes / 4)
+					return;
+
+				CachedDrawable old = mEntries.put(key, new CachedDrawable(replacement, state, bytes));
+				if (old != null)
+					mBytes -= old.bytes;
+				mBytes += bytes;
+				trimToSize();
+			}
+		}
+
+		public synchronized void clear() {
+			mEntries.clear();
+			mBytes = 0;
+		}
+
+		private void trimToSize() {
+			Iterator<CachedDrawable> it = mEntries.values().iterator();
+			while (mBytes > mMaxBytes && it.hasNext()) {
+				mBytes -= it.next().bytes;
+				it.remove();
+			}
+		}
+
+		private static int estimateSize(Drawable drawable) {
+			if (drawable instanceof BitmapDrawable) {
+				Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+				if (bitmap != null)
+					return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+			int width = drawable.getIntrinsicWidth();
+			int height = drawable.getIntrinsicHeight();
+			// assume ARGB_8888 for drawables that are rendered to bitmaps, small fixed size for others
+			return (width > 0 && height > 0) ? width * height * 4 : 256;
+		}
+	}
+
+	/**
+	 * Identifies a drawable by resource and the full configuration (orientation, locale, layout
+	 * direction, screen size etc.) it has been created for. Keys used for lookups refer to the
+	 * live configurations, keys stored in the cache use copies of them.
+	 */
+	private static final class DrawableKey {
+		private final int resDirIndex;
+		private final int id;
+		private final int density;
+		private final Configuration config;
+		private final Configuration repConfig;
+		private final int hashCode;
+
+		private DrawableKey(int resDirIndex, int id, int density, Configuration config, Configuration repConfig) {
+			this.resDirIndex = resDirIndex;
+			this.id = id;
+			this.density = density;
+			this.config = config;
+			this.repConfig = repConfig;
+
+			int hash = ((id * 31 + resDirIndex) * 31 + density) * 31 + config.hashCode();
+			this.hashCode = hash * 31 + (repConfig != null ? repConfig.hashCode() : 0);
+		}
+
+		/** Returns a key with copies of the configurations, which won't change anymore. */
+		private DrawableKey copy() {
+			return new DrawableKey(resDirIndex, id, density, new Configuration(config),
+					(repConfig != null) ? new Configuration(repConfig) : null);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof DrawableKey))
+				return false;
+			DrawableKey other = (DrawableKey) o;
+			return id == other.id && resDirIndex == other.resDirIndex && density == other.density
+					&& hashCode == other.hashCode && config.equals(other.config)
+					&& (repConfig == null ? other.repConfig == null : repConfig.equals(other.repConfig));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static final class CachedDrawable {
+		private final Object replacement;
+		private final Drawable.ConstantState state;
+		private final int bytes;
+
+		private CachedDrawable(Object replacement, Drawable.ConstantState state, int bytes) {
+			this.replacement = replacement;
+			this.state = state;
+			this.bytes = bytes;
+		}
+	}
+
 	// =======================================================
 	//   XTypedArray class
 	// =======================================================
@@ -1302,15 +1955,7 @@ public class XResources extends XResourcesSuperClass {
 			if (replacement instanceof ColorStateList) {
 				return (ColorStateList) replacement;
 			} else if (replacement instanceof Integer) {
-				int color = (Integer) replacement;
-				synchronized (sColorStateListCache) {
-					ColorStateList result = sColorStateListCache.get(color);
-					if (result == null) {
-						result = ColorStateList.valueOf(color);
-						sColorStateListCache.put(color, result);
-					}
-					return result;
-				}
+				return sColorStateListCache.get((Integer) replacement);
 			} else if (replacement instanceof XResForwarder) {
 				Resources repRes = ((XResForwarder) replacement).getResources();
 				int repId = ((XResForwarder) replacement).getId();
@@ -1356,19 +2001,9 @@ public class XResources extends XResourcesSuperClass {
 		public Drawable getDrawable(int index) {
 			final int resId = getResourceId(index, 0);
 			Object replacement = mRes.getReplacement(resId);
-			if (replacement instanceof DrawableLoader) {
-				try {
-					Drawable result = ((DrawableLoader) replacement).newDrawable(mRes, resId);
-					if (result != null)
-						return result;
-				} catch (Throwable t) { XposedBridge.log(t); }
-			} else if (replacement instanceof Integer) {
-				return new ColorDrawable((Integer) replacement);
-			} else if (replacement instanceof XResForwarder) {
-				Resources repRes = ((XResForwarder) replacement).getResources();
-				int repId = ((XResForwarder) replacement).getId();
-				return repRes.getDrawable(repId);
-			}
+			Drawable result = mRes.getReplacementDrawable(replacement, resId, 0, false);
+			if (result != null)
+				return result;
 			return super.getDrawable(index);
 		}
 
@@ -1577,6 +2212,27 @@ public class XResources extends XResourcesSuperClass {
 	//   INFLATING LAYOUTS
 	// =======================================================
 
+	/** Callbacks and details for a hooked layout, shared by all resources with the same directory. */
+	private static final class LayoutHook {
+		public final ResourceNames resNames;
+		public final CopyOnWriteSortedSet<XC_LayoutInflated> callbacks = new CopyOnWriteSortedSet<>();
+		public volatile LayoutVariant variant;
+
+		private LayoutHook(ResourceNames resNames) {
+			this.resNames = resNames;
+		}
+	}
+
+	private static final class LayoutVariant {
+		public final Configuration config;
+		public final String name;
+
+		private LayoutVariant(Configuration config, String name) {
+			this.config = config;
+			this.name = name;
+		}
+	}
+
 	private class XMLInstanceDetails {
 		public final ResourceNames resNames;
 		public final String variant;
@@ -1681,6 +2337,9 @@ public class XResources extends XResourcesSuperClass {
 	 * {@link XResources} object easily available in that scope, this static method can be used
 	 * to hook layouts.
 	 *
+	 * <p>Layout hooks are only called if the layout is inflated on the same thread which loaded
+	 * it, as {@link android.view.LayoutInflater#inflate(int, android.view.ViewGroup)} does.
+	 *
 	 * @param pkg The package name, e.g. {@code android}.
 	 *            See {@link #getResourcePackageName}.
 	 * @param type The type name, e.g. {@code layout}.
@@ -1700,48 +2359,32 @@ public class XResources extends XResourcesSuperClass {
 	private static XC_LayoutInflated.Unhook hookLayoutInternal(String resDir, int id, ResourceNames resNames, XC_LayoutInflated callback) {
 		if (id == 0)
 			throw new IllegalArgumentException("id 0 is not an allowed resource identifier");
-
-		HashMap<String, CopyOnWriteSortedSet<XC_LayoutInflated>> inner;
-		synchronized (sLayoutCallbacks) {
-			inner = sLayoutCallbacks.get(id);
-			if (inner == null) {
-				inner = new HashMap<>();
-				sLayoutCallbacks.put(id, inner);
-			}
-		}
-
-		CopyOnWriteSortedSet<XC_LayoutInflated> callbacks;
-		synchronized (inner) {
-			callbacks = inner.get(resDir);
-			if (callbacks == null) {
-				callbacks = new CopyOnWriteSortedSet<>();
-				inner.put(resDir, callbacks);
+		if (resDir == null)
+			ensureHooksInstalled();
+
+		int resDirIndex = getResDirIndex(resDir);
+		LayoutHook hook;
+		synchronized (sLayoutHooksLock) {
+			hook = (LayoutHook) sLayoutHooks.get(id, resDirIndex);
+			if (hook == null) {
+				hook = new LayoutHook(resNames);
+				sLayoutHooks = sLayoutHooks.put(id, resDirIndex, hook);
 			}
 		}
 
-		callbacks.add(callback);
-
-		putResourceNames(resDir, resNames);
+		hook.callbacks.add(callback);
 
 		return callback.new Unhook(resDir, id);
 	}
 
 	/** @hide */
 	public static void unhookLayout(String resDir, int id, XC_LayoutInflated callback) {
-		HashMap<String, CopyOnWriteSortedSet<XC_LayoutInflated>> inner;
-		synchronized (sLayoutCallbacks) {
-			inner = sLayoutCallbacks.get(id);
-			if (inner == null)
-				return;
-		}
-
-		CopyOnWriteSortedSet<XC_LayoutInflated> callbacks;
-		synchronized (inner) {
-			callbacks = inner.get(resDir);
-			if (callbacks == null)
-				return;
-		}
+		int resDirIndex = findResDirIndex(resDir);
+		if (resDirIndex < 0)
+			return;
 
-		callbacks.remove(callback);
+		LayoutHook hook = (LayoutHook) sLayoutHooks.get(id, resDirIndex);
+		if (hook != null)
+			hook.callbacks.remove(callback);
 	}
 }
@@ -0,0 +1,309 @@
+package de.robv.android.xposed;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.os.RuntimeInit;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import dalvik.system.VMStack;
+
+import static de.robv.android.xposed.XposedBridge.TAG;
+
+/**
+ * Backend for {@link XposedBridge#log}, which writes the messages in a background thread.
+ *
+ * <p>Callers only put the message into a ring buffer, they never block and don't format stack
+ * traces. If the buffer overflows, the oldest messages are dropped. The background thread
+ * limits the number of messages per source (the class which logged them) and the number of
+ * repetitions of the same exception (same class and stack trace). When the rate limiting window
+ * ends, it reports how many messages have been suppressed.
+ *
+ * <p>Pending messages are written before the default handler for uncaught exceptions is called,
+ * so they aren't lost when the process is killed after a crash. That handler is set up by
+ * {@code RuntimeInit.commonInit()} after the fork, see {@link #hookCrashHandler}.
+ *
+ * <p>Zygote must not start any threads, so messages are written directly in that process.
+ */
+/*package*/ final class AsyncLogger {
+	private static final int BUFFER_SIZE = 1024; // must be a power of two
+	private static final long FLUSH_INTERVAL_MS = 100;
+	private static final long SOURCE_WINDOW_MS = 10 * 1000;
+	private static final int SOURCE_LIMIT = 100;
+	private static final long THROWABLE_WINDOW_MS = 60 * 1000;
+	private static final int THROWABLE_LIMIT = 5;
+	private static final int SIGNATURE_FRAMES = 4;
+
+	private static final AtomicReferenceArray<Entry> sBuffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+	private static final AtomicLong sWriteSeq = new AtomicLong();
+	private static volatile long sReadSeq = 0;
+	private static final AtomicBoolean sFlusherStarted = new AtomicBoolean();
+	private static final AtomicBoolean sCrashHandlerInstalled = new AtomicBoolean();
+	private static volatile Thread sFlusher = null;
+
+	// only used while holding sFlushLock
+	private static final Object sFlushLock = new Object();
+	private static final HashMap<String, Source> sSources = new HashMap<>();
+	private static final HashMap<String, Source> sThrowables = new HashMap<>();
+
+	private AsyncLogger() {}
+
+	/**
+	 * Must only be called by {@link XposedBridge#log(String)}, otherwise the wrong class is
+	 * treated as the source of the message.
+	 */
+	/*package*/ static void log(String text) {
+		if (XposedBridge.isZygoteProcess())
+			Log.i(TAG, text);
+		else
+			enqueue(String.valueOf(text), null, getCallerClass());
+	}
+
+	/*package*/ static void log(Throwable t) {
+		if (XposedBridge.isZygoteProcess())
+			Log.e(TAG, Log.getStackTraceString(t));
+		else
+			enqueue(null, t, null);
+	}
+
+	/**
+	 * Hooks the initialization of the runtime in new processes to install the crash handler.
+	 * Must be called before the original startup code.
+	 */
+	/*package*/ static void hookCrashHandler() {
+		try {
+			XposedHelpers.findAndHookMethod(RuntimeInit.class, "commonInit", new XC_MethodHook() {
+				@Override
+				protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+					if (!XposedBridge.isZygoteProcess())
+						installCrashHandler();
+				}
+			});
+		} catch (Throwable t) {
+			Log.e(TAG, "Could not hook the crash handler initialization", t);
+		}
+	}
+
+	/** Writes pending messages before a crash kills the process, which skips shutdown hooks. */
+	private static void installCrashHandler() {
+		final Thread.UncaughtExceptionHandler previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+		if (previousHandler == null || !sCrashHandlerInstalled.compareAndSet(false, true))
+			return;
+
+		Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread thread, Throwable throwable) {
+				try {
+					flush();
+				} catch (Throwable t) {
+					Log.e(TAG, "Failed to write log messages", t);
+				}
+				previousHandler.uncaughtException(thread, throwable);
+			}
+		});
+	}
+
+	/**
+	 * Returns the class which called {@link XposedBridge#log(String)}, without the overhead of
+	 * capturing a stack trace.
+	 */
+	private static Class<?> getCallerClass() {
+		try {
+			// 0 = AsyncLogger, 1 = XposedBridge, 2 = the caller
+			return VMStack.getStackClass2();
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
+	/** Adds a message to the buffer. For text messages, {@code caller} is the source. */
+	private static void enqueue(String text, Throwable t, Class<?> caller) {
+		long seq = sWriteSeq.getAndIncrement();
+		sBuffer.set((int) (seq & (BUFFER_SIZE - 1)), new Entry(seq, text, t, caller));
+
+		Thread flusher = sFlusher;
+		if (flusher == null)
+			startFlusher();
+		else if (seq - sReadSeq >= BUFFER_SIZE / 2)
+			LockSupport.unpark(flusher);
+	}
+
+	private static void startFlusher() {
+		if (!sFlusherStarted.compareAndSet(false, true))
+			return;
+
+		Thread flusher = new Thread("XposedLogger") {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						flush();
+					} catch (Throwable t) {
+						Log.e(TAG, "Failed to write log messages", t);
+					}
+					LockSupport.parkNanos(FLUSH_INTERVAL_MS * 1000000L);
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+		sFlusher = flusher;
+
+		// write pending messages when the process exits normally
+		Runtime.getRuntime().addShutdownHook(new Thread("XposedLoggerShutdown") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	private static void flush() {
+		synchronized (sFlushLock) {
+			final long now = SystemClock.elapsedRealtime();
+			final long write = sWriteSeq.get();
+			long read = sReadSeq;
+			long dropped = 0;
+
+			if (write - read > BUFFER_SIZE) {
+				dropped += write - BUFFER_SIZE - read;
+				read = write - BUFFER_SIZE;
+			}
+
+			while (read < write) {
+				int index = (int) (read & (BUFFER_SIZE - 1));
+				Entry entry = sBuffer.get(index);
+				if (entry == null || entry.seq < read) {
+					// reserved, but not written yet => try again later
+					break;
+				} else if (entry.seq > read) {
+					// overwritten by a newer message
+					dropped++;
+					read++;
+					continue;
+				}
+
+				sBuffer.compareAndSet(index, entry, null);
+				write(entry, now);
+				read++;
+			}
+			sReadSeq = read;
+
+			if (dropped > 0)
+				Log.w(TAG, "Dropped " + dropped + " log messages because too many were written");
+
+			reportSuppressed(now);
+		}
+	}
+
+	private static void write(Entry entry, long now) {
+		if (entry.throwable != null) {
+			// identical exceptions (e.g. from a callback on a hot method) are only logged a few times
+			String signature = getSignature(entry.throwable);
+			if (isSuppressed(sThrowables, signature, now, THROWABLE_LIMIT))
+				return;
+			Log.e(TAG, Log.getStackTraceString(entry.throwable));
+		} else {
+			if (isSuppressed(sSources, getSource(entry.caller), now, SOURCE_LIMIT))
+				return;
+			Log.i(TAG, entry.text);
+		}
+	}
+
+	private static boolean isSuppressed(HashMap<String, Source> sources, String key, long now, int limit) {
+		Source source = sources.get(key);
+		if (source == null) {
+			source = new Source(now);
+			sources.put(key, source);
+		}
+
+		if (++source.count > limit) {
+			source.suppressed++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Reports and removes the sources whose rate limiting window has expired. */
+	private static void reportSuppressed(long now) {
+		Iterator<Map.Entry<String, Source>> it = sSources.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Source> entry = it.next();
+			Source source = entry.getValue();
+			if (now - source.windowStart < SOURCE_WINDOW_MS)
+				continue;
+
+			if (source.suppressed > 0)
+				Log.w(TAG, "Suppressed " + source.suppressed + " log messages from " + entry.getKey());
+			it.remove();
+		}
+
+		it = sThrowables.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Source> entry = it.next();
+			Source source = entry.getValue();
+			if (now - source.windowStart < THROWABLE_WINDOW_MS)
+				continue;
+
+			if (source.suppressed > 0)
+				Log.w(TAG, "Suppressed " + source.suppressed + " repetitions of: " + getSummary(entry.getKey()));
+			it.remove();
+		}
+	}
+
+	/** Returns the name of the (outermost) class which called {@link XposedBridge#log}. */
+	private static String getSource(Class<?> caller) {
+		if (caller == null)
+			return "unknown";
+
+		String className = caller.getName();
+		int inner = className.indexOf('$');
+		return (inner > 0) ? className.substring(0, inner) : className;
+	}
+
+	private static String getSignature(Throwable t) {
+		StringBuilder sb = new StringBuilder(t.getClass().getName());
+		StackTraceElement[] trace = t.getStackTrace();
+		for (int i = 0; i < trace.length && i < SIGNATURE_FRAMES; i++)
+			sb.append("\n\tat ").append(trace[i]);
+		return sb.toString();
+	}
+
+	/** Returns the first two lines of a signature, i.e. the exception and the top frame. */
+	private static String getSummary(String signature) {
+		int end = signature.indexOf('\n');
+		end = (end >= 0) ? signature.indexOf('\n', end + 1) : -1;
+		return (end >= 0) ? signature.substring(0, end) : signature;
+	}
+
+	private static final class Entry {
+		private final long seq;
+		private final String text;
+		private final Throwable throwable;
+		private final Class<?> caller;
+
+		private Entry(long seq, String text, Throwable throwable, Class<?> caller) {
+			this.seq = seq;
+			this.text = text;
+			this.throwable = throwable;
+			this.caller = caller;
+		}
+	}
+
+	private static final class Source {
+		private final long windowStart;
+		private int count = 0;
+		private int suppressed = 0;
+
+		private Source(long windowStart) {
+			this.windowStart = windowStart;
+		}
+	}
+}
@@ -30,7 +30,13 @@ public interface IXposedHookInitPackageResources extends IXposedMod {
 		}
 		@Override
 		public void handleInitPackageResources(InitPackageResourcesParam resparam) throws Throwable {
-			instance.handleInitPackageResources(resparam);
+			// hooks which are registered now belong to this module
+			ClassLoader previous = XposedBridge.enterModule(instance.getClass().getClassLoader());
+			try {
+				instance.handleInitPackageResources(resparam);
+			} finally {
+				XposedBridge.exitModule(previous);
+			}
 		}
 	}
 }
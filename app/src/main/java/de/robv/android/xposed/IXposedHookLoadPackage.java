@@ -31,7 +31,13 @@ public interface IXposedHookLoadPackage extends IXposedMod {
 		}
 		@Override
 		public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
-			instance.handleLoadPackage(lpparam);
+			// hooks which are registered now belong to this module
+			ClassLoader previous = XposedBridge.enterModule(instance.getClass().getClassLoader());
+			try {
+				instance.handleLoadPackage(lpparam);
+			} finally {
+				XposedBridge.exitModule(previous);
+			}
 		}
 	}
 }
@@ -4,6 +4,7 @@ import android.os.SELinux;
 
 import de.robv.android.xposed.services.BaseService;
 import de.robv.android.xposed.services.BinderService;
+import de.robv.android.xposed.services.CachingService;
 import de.robv.android.xposed.services.DirectAccessService;
 import de.robv.android.xposed.services.ZygoteService;
 
@@ -58,6 +59,7 @@ public final class SELinuxHelper {
 	// ----------------------------------------------------------------------------
 	private static boolean sIsSELinuxEnabled = false;
 	private static BaseService sServiceAppDataFile = null;
+	private static final int APP_DATA_FILE_CACHE_SIZE = 256 * 1024;
 
 	/*package*/ static void initOnce() {
 		try {
@@ -70,7 +72,7 @@ public final class SELinuxHelper {
 			if (packageName == null) {  // Zygote
 				sServiceAppDataFile = new ZygoteService();
 			} else if (packageName.equals("android")) {  //system_server
-				sServiceAppDataFile = BinderService.getService(BinderService.TARGET_APP);
+				sServiceAppDataFile = new CachingService(BinderService.getService(BinderService.TARGET_APP), APP_DATA_FILE_CACHE_SIZE);
 			} else {  // app
 				sServiceAppDataFile = new DirectAccessService();
 			}
@@ -1,6 +1,12 @@
 package de.robv.android.xposed;
 
+import android.os.Looper;
+import android.os.SystemClock;
+
 import java.lang.reflect.Member;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.robv.android.xposed.callbacks.IXUnhook;
 import de.robv.android.xposed.callbacks.XCallback;
@@ -12,12 +18,15 @@ import de.robv.android.xposed.callbacks.XCallback;
  * {@link #beforeHookedMethod} and/or {@link #afterHookedMethod}.
  */
 public abstract class XC_MethodHook extends XCallback {
+	/*package*/ final Guard guard;
+
 	/**
 	 * Creates a new callback with default priority.
 	 */
 	@SuppressWarnings("deprecation")
 	public XC_MethodHook() {
 		super();
+		this.guard = null;
 	}
 
 	/**
@@ -32,6 +41,29 @@ public abstract class XC_MethodHook extends XCallback {
 	 */
 	public XC_MethodHook(int priority) {
 		super(priority);
+		this.guard = null;
+	}
+
+	/**
+	 * Creates a new callback with default priority, which is only called if the guard matches.
+	 * See {@link Guard} for details.
+	 *
+	 * @param guard The condition for calling this callback.
+	 */
+	public XC_MethodHook(Guard guard) {
+		this(PRIORITY_DEFAULT, guard);
+	}
+
+	/**
+	 * Creates a new callback with a specific priority, which is only called if the guard matches.
+	 * See {@link Guard} for details.
+	 *
+	 * @param priority See {@link XCallback#priority}.
+	 * @param guard The condition for calling this callback, {@code null} to always call it.
+	 */
+	public XC_MethodHook(int priority, Guard guard) {
+		super(priority);
+		this.guard = guard;
 	}
 
 	/**
@@ -60,6 +92,212 @@ public abstract class XC_MethodHook extends XCallback {
 	 */
 	protected void afterHookedMethod(MethodHookParam param) throws Throwable {}
 
+	/**
+	 * A cheap condition which decides whether a callback is called for a specific invocation.
+	 *
+	 * <p>Guards are evaluated before any callback is called and before the parameter object is
+	 * created. They see the original receiver and arguments. If the guard doesn't match, neither
+	 * {@link #beforeHookedMethod} nor {@link #afterHookedMethod} are called for this invocation.
+	 * If no guard of any callback matches, the original method is called directly, which makes it
+	 * possible to hook very frequently called methods with little overhead.
+	 *
+	 * <p>The {@code sample...()} guards only let a subset of the invocations through, e.g. for
+	 * profiling or tracing. Invocations which aren't sampled don't cost more than the guard check.
+	 *
+	 * <p>Implementations must be fast, thread-safe and free of side effects (except for the
+	 * state needed for sampling).
+	 */
+	public static abstract class Guard {
+		// set when matches() has thrown an exception, the guard never matches afterwards
+		/*package*/ volatile boolean failed = false;
+
+		/**
+		 * Constructor.
+		 */
+		public Guard() {}
+
+		/**
+		 * Returns whether the callback should be called for this invocation.
+		 *
+		 * <p>If this method throws an exception, it's logged once and the guard won't match
+		 * any invocation afterwards.
+		 *
+		 * @param method The hooked method/constructor.
+		 * @param thisObject The {@code this} reference for an instance method, or {@code null}.
+		 * @param args Arguments to the method call. Must not be modified.
+		 * @return {@code true} if the callback should be called.
+		 */
+		public abstract boolean matches(Member method, Object thisObject, Object[] args);
+
+		/**
+		 * Matches if the {@code this} reference is an instance of the given class.
+		 */
+		public static Guard receiverInstanceOf(final Class<?> clazz) {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					return clazz.isInstance(thisObject);
+				}
+			};
+		}
+
+		/**
+		 * Matches if the argument at the given index is an instance of the given class.
+		 */
+		public static Guard argumentInstanceOf(final int index, final Class<?> clazz) {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					return args != null && index < args.length && clazz.isInstance(args[index]);
+				}
+			};
+		}
+
+		/**
+		 * Matches if the argument at the given index {@linkplain Object#equals equals} the value.
+		 * Primitive arguments are boxed, so use e.g. {@code Integer.valueOf(1)} for them.
+		 */
+		public static Guard argumentEquals(final int index, final Object value) {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					if (args == null || index >= args.length)
+						return false;
+					return (value == null) ? args[index] == null : value.equals(args[index]);
+				}
+			};
+		}
+
+		/**
+		 * Matches if the method is called on the given thread.
+		 */
+		public static Guard onThread(final Thread thread) {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					return Thread.currentThread() == thread;
+				}
+			};
+		}
+
+		/**
+		 * Matches if the method is called on the main thread of the app.
+		 */
+		public static Guard onMainThread() {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					Looper mainLooper = Looper.getMainLooper();
+					return mainLooper != null && mainLooper.getThread() == Thread.currentThread();
+				}
+			};
+		}
+
+		/**
+		 * Samples every {@code n}-th invocation on each thread, starting with the first one.
+		 * Useful for observing frequently called methods without slowing them down.
+		 */
+		public static Guard sampleEveryNth(final int n) {
+			if (n <= 0)
+				throw new IllegalArgumentException("n must be positive");
+			return new Guard() {
+				private final ThreadLocal<int[]> mCounter = new ThreadLocal<int[]>() {
+					@Override
+					protected int[] initialValue() {
+						return new int[1];
+					}
+				};
+
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					int[] counter = mCounter.get();
+					if (counter[0] == 0) {
+						counter[0] = n - 1;
+						return true;
+					}
+					counter[0]--;
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * Samples each invocation with the given probability, e.g. {@code 0.01} for one percent.
+		 */
+		public static Guard sampleRandomly(final double probability) {
+			if (!(probability >= 0 && probability <= 1))
+				throw new IllegalArgumentException("probability must be between 0 and 1");
+			return new Guard() {
+				private final ThreadLocal<Random> mRandom = new ThreadLocal<Random>() {
+					@Override
+					protected Random initialValue() {
+						return new Random();
+					}
+				};
+
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					return mRandom.get().nextDouble() < probability;
+				}
+			};
+		}
+
+		/**
+		 * Samples at most {@code n} invocations per second, across all threads.
+		 */
+		public static Guard sampleMaxPerSecond(final int n) {
+			if (n <= 0)
+				throw new IllegalArgumentException("n must be positive");
+			return new Guard() {
+				private final AtomicLong mSecond = new AtomicLong(-1);
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					long now = SystemClock.uptimeMillis() / 1000;
+					long second = mSecond.get();
+					if (second != now && mSecond.compareAndSet(second, now))
+						mCount.set(0);
+
+					// avoid contention on the counter once the limit has been reached
+					return mCount.get() < n && mCount.incrementAndGet() <= n;
+				}
+			};
+		}
+
+		/**
+		 * Matches if all of the given guards match.
+		 */
+		public static Guard allOf(final Guard... guards) {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					for (Guard guard : guards) {
+						if (!guard.matches(method, thisObject, args))
+							return false;
+					}
+					return true;
+				}
+			};
+		}
+
+		/**
+		 * Matches if any of the given guards matches.
+		 */
+		public static Guard anyOf(final Guard... guards) {
+			return new Guard() {
+				@Override
+				public boolean matches(Member method, Object thisObject, Object[] args) {
+					for (Guard guard : guards) {
+						if (guard.matches(method, thisObject, args))
+							return true;
+					}
+					return false;
+				}
+			};
+		}
+	}
+
 	/**
 	 * Wraps information about the method call and allows to influence it.
 	 */
@@ -156,5 +394,36 @@ public abstract class XC_MethodHook extends XCallback {
 			XposedBridge.unhookMethod(hookMethod, XC_MethodHook.this);
 		}
 
+		/**
+		 * Temporarily enables or disables this hook. Unlike checking a flag in the callback,
+		 * disabled hooks don't cost anything when the method is called.
+		 *
+		 * <p>Use {@link XposedBridge#setModuleHooksEnabled} to toggle all hooks of a module.
+		 *
+		 * @param enabled {@code false} to skip the callback until it's enabled again.
+		 */
+		public void setEnabled(boolean enabled) {
+			XposedBridge.setHookEnabled(hookMethod, XC_MethodHook.this, enabled);
+		}
+
+		/**
+		 * Returns whether the callback is currently called for this method, i.e. it hasn't been
+		 * removed and neither the hook nor its module has been disabled.
+		 */
+		public boolean isEnabled() {
+			return XposedBridge.isHookEnabled(hookMethod, XC_MethodHook.this);
+		}
+
+		/**
+		 * Controls whether this hook is temporarily disabled when it keeps throwing exceptions,
+		 * which is the default. Hooks which must never be skipped, e.g. because they keep
+		 * some state consistent, can opt out.
+		 *
+		 * @param enabled {@code false} to always call the callback, even if it keeps failing.
+		 */
+		public void setCircuitBreakerEnabled(boolean enabled) {
+			XposedBridge.setCircuitBreakerEnabled(hookMethod, XC_MethodHook.this, enabled);
+		}
+
 	}
 }
@@ -0,0 +1,235 @@
+package de.robv.android.xposed;
+
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.robv.android.xposed.callbacks.XCallback;
+
+/**
+ * A special case of {@link XC_MethodHook} which caches the results of a deterministic method.
+ *
+ * <p>Results are cached per method, receiver (compared by identity) and argument values (compared
+ * with {@link Arrays#deepEquals}), so one instance can be used for several methods, e.g. with
+ * {@link XposedBridge#hookAllMethods}. For cached calls, neither the original method nor any other
+ * callback with a lower priority is called. Exceptions are never cached.
+ *
+ * <p>By default, the memoizer has the highest priority, so it caches the final result of the
+ * call. To memoize an {@link XC_MethodReplacement}, simply hook the method with both callbacks.
+ *
+ * <p>Only use this for methods whose result depends on nothing but the receiver and the
+ * arguments, and don't modify arguments or results after they have been cached.
+ */
+public class XC_MethodMemoizer extends XC_MethodHook {
+	private static final XCallback.ExtraKey<CacheKey> EXTRA_CACHE_KEY = new XCallback.ExtraKey<>("memoizerCacheKey");
+
+	private final int mMaxEntries;
+	private final long mTtlMillis;
+	private final LinkedHashMap<CacheKey, CachedResult> mCache;
+	private long mHits = 0;
+	private long mMisses = 0;
+
+	/**
+	 * Creates a new memoizer without expiration.
+	 *
+	 * @param maxEntries The maximum number of cached results. The least recently used ones are
+	 *                   removed first.
+	 */
+	public XC_MethodMemoizer(int maxEntries) {
+		this(PRIORITY_HIGHEST, maxEntries, 0, null);
+	}
+
+	/**
+	 * Creates a new memoizer.
+	 *
+	 * @param maxEntries The maximum number of cached results. The least recently used ones are
+	 *                   removed first.
+	 * @param ttlMillis The time after which cached results expire, {@code 0} for no expiration.
+	 */
+	public XC_MethodMemoizer(int maxEntries, long ttlMillis) {
+		this(PRIORITY_HIGHEST, maxEntries, ttlMillis, null);
+	}
+
+	/**
+	 * Creates a new memoizer.
+	 *
+	 * @param priority See {@link XCallback#priority}.
+	 * @param maxEntries The maximum number of cached results. The least recently used ones are
+	 *                   removed first.
+	 * @param ttlMillis The time after which cached results expire, {@code 0} for no expiration.
+	 * @param guard See {@link XC_MethodHook.Guard}, or {@code null} to memoize all calls.
+	 */
+	public XC_MethodMemoizer(int priority, int maxEntries, long ttlMillis, Guard guard) {
+		super(priority, guard);
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("maxEntries must be positive");
+		mMaxEntries = maxEntries;
+		mTtlMillis = ttlMillis;
+		// access-ordered, i.e. the least recently used entry comes first
+		mCache = new LinkedHashMap<CacheKey, CachedResult>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedResult> eldest) {
+				return size() > mMaxEntries;
+			}
+		};
+	}
+
+	/** @hide */
+	@Override
+	protected final void beforeHookedMethod(MethodHookParam param) throws Throwable {
+		CacheKey key = new CacheKey(param.method, param.thisObject, param.args);
+		synchronized (mCache) {
+			CachedResult cached = mCache.get(key);
+			if (cached != null && mTtlMillis > 0 && SystemClock.uptimeMillis() - cached.time > mTtlMillis) {
+				mCache.remove(key);
+				cached = null;
+			}
+
+			if (cached != null) {
+				mHits++;
+				param.setResult(cached.result);
+				return;
+			}
+			mMisses++;
+		}
+		param.setExtra(EXTRA_CACHE_KEY, key);
+	}
+
+	/** @hide */
+	@Override
+	protected final void afterHookedMethod(MethodHookParam param) throws Throwable {
+		CacheKey key = param.getExtra(EXTRA_CACHE_KEY);
+		if (key == null || param.hasThrowable())
+			return;
+
+		CachedResult result = new CachedResult(param.getResult(), SystemClock.uptimeMillis());
+		synchronized (mCache) {
+			mCache.put(key, result);
+		}
+	}
+
+	/**
+	 * Removes the cached result for a specific call, if there is any.
+	 *
+	 * @param method The hooked method/constructor.
+	 * @param thisObject The receiver, or {@code null} for static methods.
+	 * @param args The arguments of the call.
+	 */
+	public void invalidate(Member method, Object thisObject, Object... args) {
+		synchronized (mCache) {
+			mCache.remove(new CacheKey(method, thisObject, args));
+		}
+	}
+
+	/**
+	 * Removes the cached results for calls with the given receiver and arguments, for all methods
+	 * which are hooked with this memoizer.
+	 *
+	 * @param thisObject The receiver, or {@code null} for static methods.
+	 * @param args The arguments of the call.
+	 */
+	public void invalidate(Object thisObject, Object... args) {
+		synchronized (mCache) {
+			Iterator<CacheKey> it = mCache.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().matches(thisObject, args))
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void invalidateAll() {
+		synchronized (mCache) {
+			mCache.clear();
+		}
+	}
+
+	/** Returns the number of calls which were answered from the cache. */
+	public long getHitCount() {
+		synchronized (mCache) {
+			return mHits;
+		}
+	}
+
+	/** Returns the number of calls for which the method had to be called. */
+	public long getMissCount() {
+		synchronized (mCache) {
+			return mMisses;
+		}
+	}
+
+	/** Returns the number of currently cached results. */
+	public int size() {
+		synchronized (mCache) {
+			return mCache.size();
+		}
+	}
+
+	private static final class CacheKey {
+		private final Member method;
+		// weak, so that cached results don't keep the receiver alive
+		private final WeakReference<Object> thisObject;
+		private final Object[] args;
+		private final int hashCode;
+
+		private CacheKey(Member method, Object thisObject, Object[] args) {
+			this.method = method;
+			this.thisObject = (thisObject != null) ? new WeakReference<>(thisObject) : null;
+			this.args = (args != null) ? args.clone() : null;
+			this.hashCode = 31 * (31 * method.hashCode() + System.identityHashCode(thisObject))
+					+ Arrays.deepHashCode(this.args);
+		}
+
+		private boolean matches(Object thisObject, Object[] args) {
+			Object receiver = (this.thisObject != null) ? this.thisObject.get() : null;
+			if (receiver != thisObject || (this.thisObject != null && receiver == null))
+				return false;
+			return Arrays.deepEquals(this.args, args);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof CacheKey))
+				return false;
+
+			CacheKey other = (CacheKey) o;
+			if (hashCode != other.hashCode || !method.equals(other.method))
+				return false;
+
+			if (thisObject == null || other.thisObject == null) {
+				if (thisObject != other.thisObject)
+					return false;
+			} else {
+				Object receiver = thisObject.get();
+				if (receiver == null || receiver != other.thisObject.get())
+					return false;
+			}
+			return Arrays.deepEquals(args, other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static final class CachedResult {
+		private final Object result;
+		private final long time;
+
+		private CachedResult(Object result, long time) {
+			this.result = result;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package de.robv.android.xposed;
+
+import android.os.SystemClock;
+
+import java.lang.reflect.Member;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.robv.android.xposed.callbacks.XCallback;
+
+/**
+ * A special case of {@link XC_MethodHook} which only observes calls, without influencing them.
+ *
+ * <p>After the hooked method has returned, an immutable {@link Event} is recorded and put into a
+ * bounded queue. {@link #observe} is then called on a background thread, so the hooked method
+ * returns almost as fast as without the hook. The events of one observer are processed in order.
+ *
+ * <p>In Zygote, where no threads may be started, {@link #observe} is called synchronously.
+ */
+public abstract class XC_MethodObserver extends XC_MethodHook {
+	/** The default maximum number of queued events. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Defines what happens if an event is recorded while the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** The new event is dropped. */
+		DROP_NEWEST,
+		/** The oldest queued event is dropped to make room for the new one. */
+		DROP_OLDEST,
+		/** The new event is processed synchronously on the calling thread. */
+		CALLER_RUNS
+	}
+
+	private final int mCapacity;
+	private final OverflowPolicy mPolicy;
+	private final ConcurrentLinkedQueue<Event> mQueue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger mQueueSize = new AtomicInteger();
+	private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+	private final AtomicLong mDroppedCount = new AtomicLong();
+
+	private final Runnable mDrainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Creates a new observer with default priority, {@link #DEFAULT_CAPACITY} and
+	 * {@link OverflowPolicy#DROP_NEWEST}.
+	 */
+	public XC_MethodObserver() {
+		this(PRIORITY_DEFAULT, DEFAULT_CAPACITY, OverflowPolicy.DROP_NEWEST, null);
+	}
+
+	/**
+	 * Creates a new observer with default priority.
+	 *
+	 * @param capacity The maximum number of queued events.
+	 * @param policy What to do if the queue is full.
+	 */
+	public XC_MethodObserver(int capacity, OverflowPolicy policy) {
+		this(PRIORITY_DEFAULT, capacity, policy, null);
+	}
+
+	/**
+	 * Creates a new observer.
+	 *
+	 * <p>Observers see the result at the time their {@link #afterHookedMethod} would be called.
+	 * Use a high priority to see the final result after all other callbacks.
+	 *
+	 * @param priority See {@link XCallback#priority}.
+	 * @param capacity The maximum number of queued events.
+	 * @param policy What to do if the queue is full.
+	 * @param guard See {@link XC_MethodHook.Guard}, or {@code null} to observe all calls.
+	 */
+	public XC_MethodObserver(int priority, int capacity, OverflowPolicy policy, Guard guard) {
+		super(priority, guard);
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (policy == null)
+			throw new IllegalArgumentException("policy must not be null");
+		mCapacity = capacity;
+		mPolicy = policy;
+	}
+
+	/** @hide */
+	@Override
+	@SuppressWarnings("EmptyMethod")
+	protected final void beforeHookedMethod(MethodHookParam param) throws Throwable {}
+
+	/** @hide */
+	@Override
+	protected final void afterHookedMethod(MethodHookParam param) throws Throwable {
+		Event event = new Event(param.method, param.thisObject,
+				(param.args != null) ? param.args.clone() : null,
+				param.getResult(), param.getThrowable(), SystemClock.uptimeMillis());
+
+		if (XposedBridge.isZygoteProcess()) {
+			process(event);
+			return;
+		}
+
+		if (mQueueSize.incrementAndGet() > mCapacity) {
+			switch (mPolicy) {
+				case DROP_NEWEST:
+					mQueueSize.decrementAndGet();
+					mDroppedCount.incrementAndGet();
+					return;
+
+				case DROP_OLDEST:
+					// The worker might have taken the last event in the meantime and has already
+					// accounted for it, so only count an event which was actually removed here
+					Event oldest = mQueue.poll();
+					if (oldest != null) {
+						mQueueSize.decrementAndGet();
+						mDroppedCount.incrementAndGet();
+					}
+					break;
+
+				case CALLER_RUNS:
+					mQueueSize.decrementAndGet();
+					process(event);
+					return;
+			}
+		}
+
+		mQueue.add(event);
+		if (mDrainScheduled.compareAndSet(false, true))
+			Worker.EXECUTOR.execute(mDrainTask);
+	}
+
+	/**
+	 * Called for each recorded event, usually on a background thread.
+	 *
+	 * <p>Note that the receiver, arguments and result are the original objects, which might have
+	 * been modified in the meantime. Only the arguments array itself is a copy.
+	 *
+	 * @param event Information about the method call.
+	 * @throws Throwable Everything the callback throws is caught and logged.
+	 */
+	protected abstract void observe(Event event) throws Throwable;
+
+	/**
+	 * Returns the number of events which have been dropped because the queue was full.
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	private void drain() {
+		while (true) {
+			Event event;
+			while ((event = mQueue.poll()) != null) {
+				mQueueSize.decrementAndGet();
+				process(event);
+			}
+
+			mDrainScheduled.set(false);
+			// an event might have been added after the last poll, but before resetting the flag
+			if (mQueue.isEmpty() || !mDrainScheduled.compareAndSet(false, true))
+				return;
+		}
+	}
+
+	private void process(Event event) {
+		try {
+			observe(event);
+		} catch (Throwable t) {
+			XposedBridge.log(t);
+		}
+	}
+
+	/**
+	 * Immutable information about a call to the hooked method.
+	 */
+	public static final class Event {
+		/** The hooked method/constructor. */
+		public final Member method;
+
+		/** The {@code this} reference for an instance method, or {@code null} for static methods. */
+		public final Object thisObject;
+
+		private final Object[] args;
+
+		/** The result of the method call, or {@code null} if it threw an exception. */
+		public final Object result;
+
+		/** The {@link Throwable} thrown by the method, or {@code null}. */
+		public final Throwable throwable;
+
+		/** The time when the method returned, see {@link SystemClock#uptimeMillis}. */
+		public final long timestamp;
+
+		private Event(Member method, Object thisObject, Object[] args, Object result, Throwable throwable, long timestamp) {
+			this.method = method;
+			this.thisObject = thisObject;
+			this.args = args;
+			this.result = result;
+			this.throwable = throwable;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * Returns a copy of the array with the arguments to the method call, or {@code null} if
+		 * there were none.
+		 */
+		public Object[] getArgs() {
+			return (args != null) ? args.clone() : null;
+		}
+	}
+
+	// Only initialized when the first event is queued, i.e. never in Zygote
+	private static final class Worker {
+		static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "XposedObserver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
@@ -22,6 +22,27 @@ public abstract class XC_MethodReplacement extends XC_MethodHook {
 		super(priority);
 	}
 
+	/**
+	 * Creates a new callback with default priority, which only replaces the method if the guard
+	 * matches. Otherwise, the original method is called.
+	 *
+	 * @param guard See {@link XC_MethodHook.Guard}.
+	 */
+	public XC_MethodReplacement(Guard guard) {
+		super(guard);
+	}
+
+	/**
+	 * Creates a new callback with a specific priority, which only replaces the method if the
+	 * guard matches. Otherwise, the original method is called.
+	 *
+	 * @param priority See {@link XCallback#priority}.
+	 * @param guard See {@link XC_MethodHook.Guard}.
+	 */
+	public XC_MethodReplacement(int priority, Guard guard) {
+		super(priority, guard);
+	}
+
 	/** @hide */
 	@Override
 	protected final void beforeHookedMethod(MethodHookParam param) throws Throwable {
@@ -53,12 +74,7 @@ public abstract class XC_MethodReplacement extends XC_MethodHook {
 	/**
 	 * Predefined callback that skips the method without replacements.
 	 */
-	public static final XC_MethodReplacement DO_NOTHING = new XC_MethodReplacement(PRIORITY_HIGHEST*2) {
-		@Override
-		protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
-			return null;
-		}
-	};
+	public static final XC_MethodReplacement DO_NOTHING = new ConstantReplacement(PRIORITY_HIGHEST*2, null);
 
 	/**
 	 * Creates a callback which always returns a specific value.
@@ -76,12 +92,24 @@ public abstract class XC_MethodReplacement extends XC_MethodHook {
 	 * @param result The value that should be returned to callers of the hooked method.
 	 */
 	public static XC_MethodReplacement returnConstant(int priority, final Object result) {
-		return new XC_MethodReplacement(priority) {
-			@Override
-			protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
-				return result;
-			}
-		};
+		return new ConstantReplacement(priority, result);
 	}
 
+	/**
+	 * Replacement which always returns the same value. If it's the first callback for a method,
+	 * the result is known without calling anything, so {@link XposedBridge} returns it directly.
+	 */
+	/*package*/ static final class ConstantReplacement extends XC_MethodReplacement {
+		/*package*/ final Object result;
+
+		private ConstantReplacement(int priority, Object result) {
+			super(priority);
+			this.result = result;
+		}
+
+		@Override
+		protected Object replaceHookedMethod(MethodHookParam param) throws Throwable {
+			return result;
+		}
+	}
 }
@@ -1,6 +1,8 @@
 package de.robv.android.xposed;
 
 import android.content.res.Resources;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.internal.os.RuntimeInit;
@@ -15,8 +17,10 @@ import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -50,6 +54,7 @@ public final class XposedBridge {
 	public static int XPOSED_BRIDGE_VERSION;
 
 	/*package*/ static boolean isZygote = true;
+	private static int zygotePid = -1;
 
 	private static int runtime = 0;
 	private static final int RUNTIME_DALVIK = 1;
@@ -57,10 +62,20 @@ public final class XposedBridge {
 
 	/*package*/ static boolean disableHooks = false;
 
+	// callbacks which throw this many exceptions within the window are disabled for the
+	// cool-down period, 0 disables this
+	private static volatile int sCircuitBreakerMaxFailures = 100;
+	private static volatile long sCircuitBreakerWindowMillis = 10 * 1000;
+	private static volatile long sCircuitBreakerCoolDownMillis = 60 * 1000;
+
 	private static final Object[] EMPTY_ARRAY = new Object[0];
 
 	// built-in handlers
-	private static final Map<Member, CopyOnWriteSortedSet<XC_MethodHook>> sHookedMethodCallbacks = new HashMap<>();
+	private static final Map<Member, AdditionalHookInfo> sHookedMethods = new HashMap<>();
+	// immutable, replaced while holding the lock on sHookedMethods
+	private static volatile Set<ClassLoader> sDisabledModules = Collections.emptySet();
+	// the class loader of the module whose code is currently executed on this thread, if known
+	private static final ThreadLocal<ClassLoader> sCurrentModule = new ThreadLocal<>();
 	/*package*/ static final CopyOnWriteSortedSet<XC_LoadPackage> sLoadedPackageCallbacks = new CopyOnWriteSortedSet<>();
 	/*package*/ static final CopyOnWriteSortedSet<XC_InitPackageResources> sInitPackageResourcesCallbacks = new CopyOnWriteSortedSet<>();
 
@@ -73,6 +88,9 @@ public final class XposedBridge {
 	@SuppressWarnings("deprecation")
 	protected static void main(String[] args) {
 		// Initialize the Xposed framework and modules
+		if (isZygote)
+			zygotePid = Process.myPid();
+
 		try {
 			if (!hadInitErrors()) {
 				initXResources();
@@ -83,6 +101,8 @@ public final class XposedBridge {
 				runtime = getRuntime();
 				XPOSED_BRIDGE_VERSION = getXposedVersion();
 
+				AsyncLogger.hookCrashHandler();
+
 				if (isZygote) {
 					XposedInit.hookResources();
 					XposedInit.initForZygote();
@@ -124,6 +144,14 @@ public final class XposedBridge {
 		setObjectField(myCL, "parent", resCL);
 	}
 
+	/**
+	 * Returns whether this is the Zygote process itself (not a process forked from it).
+	 * No threads must be started in Zygote, so work has to be done synchronously.
+	 */
+	/*package*/ static boolean isZygoteProcess() {
+		return zygotePid == Process.myPid();
+	}
+
 	private native static boolean hadInitErrors();
 	private static native int getRuntime();
 	/*package*/ static native boolean startsSystemServer();
@@ -141,10 +169,12 @@ public final class XposedBridge {
 	 * <p class="warning"><b>DON'T FLOOD THE LOG!!!</b> This is only meant for error logging.
 	 * If you want to write information/debug messages, use logcat.
 	 *
+	 * <p>Messages are written asynchronously. Repeated messages are rate-limited.
+	 *
 	 * @param text The log message.
 	 */
-	public synchronized static void log(String text) {
-		Log.i(TAG, text);
+	public static void log(String text) {
+		AsyncLogger.log(text);
 	}
 
 	/**
@@ -153,10 +183,44 @@ public final class XposedBridge {
 	 * <p class="warning"><b>DON'T FLOOD THE LOG!!!</b> This is only meant for error logging.
 	 * If you want to write information/debug messages, use logcat.
 	 *
+	 * <p>Stack traces are written asynchronously. Repeated exceptions (same class and stack trace)
+	 * are rate-limited.
+	 *
 	 * @param t The Throwable object for the stack trace.
 	 */
-	public synchronized static void log(Throwable t) {
-		Log.e(TAG, Log.getStackTraceString(t));
+	public static void log(Throwable t) {
+		AsyncLogger.log(t);
+	}
+
+	/**
+	 * Configures when callbacks which keep throwing exceptions are disabled, keeping the
+	 * current cool-down period. See {@link #setCircuitBreaker(int, long, long)}.
+	 *
+	 * @hide
+	 */
+	public static void setCircuitBreaker(int maxFailures, long windowMillis) {
+		setCircuitBreaker(maxFailures, windowMillis, sCircuitBreakerCoolDownMillis);
+	}
+
+	/**
+	 * Configures when callbacks which keep throwing exceptions are disabled.
+	 *
+	 * <p>If a callback throws {@code maxFailures} exceptions for the same method within
+	 * {@code windowMillis} milliseconds, it's disabled for that method and a message is logged.
+	 * The callback is enabled again on the first call after {@code coolDownMillis} milliseconds.
+	 * By default, callbacks are disabled for a minute after 100 exceptions within 10 seconds.
+	 * Single hooks can opt out with {@link XC_MethodHook.Unhook#setCircuitBreakerEnabled}.
+	 *
+	 * @param maxFailures The number of exceptions after which the callback is disabled, or
+	 *                    {@code 0} to never disable failing callbacks.
+	 * @param windowMillis The time window in which the exceptions are counted.
+	 * @param coolDownMillis The time after which a disabled callback is enabled again.
+	 * @hide
+	 */
+	public static void setCircuitBreaker(int maxFailures, long windowMillis, long coolDownMillis) {
+		sCircuitBreakerWindowMillis = windowMillis;
+		sCircuitBreakerCoolDownMillis = coolDownMillis;
+		sCircuitBreakerMaxFailures = maxFailures;
 	}
 
 	/**
@@ -184,39 +248,19 @@ public final class XposedBridge {
 		}
 
 		boolean newMethod = false;
-		CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-		synchronized (sHookedMethodCallbacks) {
-			callbacks = sHookedMethodCallbacks.get(hookMethod);
-			if (callbacks == null) {
-				callbacks = new CopyOnWriteSortedSet<>();
-				sHookedMethodCallbacks.put(hookMethod, callbacks);
+		AdditionalHookInfo additionalInfo;
+		synchronized (sHookedMethods) {
+			additionalInfo = sHookedMethods.get(hookMethod);
+			if (additionalInfo == null) {
+				additionalInfo = AdditionalHookInfo.create(hookMethod);
+				sHookedMethods.put(hookMethod, additionalInfo);
 				newMethod = true;
 			}
 		}
-		callbacks.add(callback);
+		additionalInfo.callbacks.add(callback, getCallingModule(callback));
 
-		if (newMethod) {
-			Class<?> declaringClass = hookMethod.getDeclaringClass();
-			int slot;
-			Class<?>[] parameterTypes;
-			Class<?> returnType;
-			if (runtime == RUNTIME_ART) {
-				slot = 0;
-				parameterTypes = null;
-				returnType = null;
-			} else if (hookMethod instanceof Method) {
-				slot = getIntField(hookMethod, "slot");
-				parameterTypes = ((Method) hookMethod).getParameterTypes();
-				returnType = ((Method) hookMethod).getReturnType();
-			} else {
-				slot = getIntField(hookMethod, "slot");
-				parameterTypes = ((Constructor<?>) hookMethod).getParameterTypes();
-				returnType = null;
-			}
-
-			AdditionalHookInfo additionalInfo = new AdditionalHookInfo(callbacks, parameterTypes, returnType);
-			hookMethodNative(hookMethod, declaringClass, slot, additionalInfo);
-		}
+		if (newMethod)
+			hookMethodNative(hookMethod, hookMethod.getDeclaringClass(), additionalInfo.slot, additionalInfo);
 
 		return callback.new Unhook(hookMethod);
 	}
@@ -232,13 +276,151 @@ public final class XposedBridge {
 	 */
 	@Deprecated
 	public static void unhookMethod(Member hookMethod, XC_MethodHook callback) {
-		CopyOnWriteSortedSet<XC_MethodHook> callbacks;
-		synchronized (sHookedMethodCallbacks) {
-			callbacks = sHookedMethodCallbacks.get(hookMethod);
-			if (callbacks == null)
+		AdditionalHookInfo additionalInfo;
+		synchronized (sHookedMethods) {
+			additionalInfo = sHookedMethods.get(hookMethod);
+			if (additionalInfo == null)
+				return;
+		}
+		additionalInfo.callbacks.remove(callback);
+	}
+
+	/**
+	 * Enables or disables a callback for a hooked method/constructor without removing it.
+	 * Disabled callbacks are excluded from the list used for dispatching, so they don't cost
+	 * anything when the method is called. Returns {@code false} if the callback wasn't registered.
+	 *
+	 * @hide
+	 */
+	public static boolean setHookEnabled(Member hookMethod, XC_MethodHook callback, boolean enabled) {
+		AdditionalHookInfo additionalInfo = getHookInfo(hookMethod, callback);
+		if (additionalInfo == null)
+			return false;
+
+		// an explicit change overrides the circuit breaker, so it mustn't enable the callback later
+		additionalInfo.resetFailures(callback);
+		synchronized (sHookedMethods) {
+			if (!additionalInfo.callbacks.contains(callback))
+				return false;
+			additionalInfo.callbacks.setEnabled(callback, enabled);
+			return true;
+		}
+	}
+
+	/**
+	 * Excludes a callback from the circuit breaker, see {@link #setCircuitBreaker(int, long, long)}.
+	 * If it's currently disabled because of exceptions, it's enabled again. Returns {@code false}
+	 * if the callback wasn't registered.
+	 *
+	 * @hide
+	 */
+	public static boolean setCircuitBreakerEnabled(Member hookMethod, XC_MethodHook callback, boolean enabled) {
+		AdditionalHookInfo additionalInfo = getHookInfo(hookMethod, callback);
+		if (additionalInfo == null)
+			return false;
+		additionalInfo.setCircuitBreakerEnabled(callback, enabled);
+		return true;
+	}
+
+	private static AdditionalHookInfo getHookInfo(Member hookMethod, XC_MethodHook callback) {
+		synchronized (sHookedMethods) {
+			AdditionalHookInfo additionalInfo = sHookedMethods.get(hookMethod);
+			if (additionalInfo == null || !additionalInfo.callbacks.contains(callback))
+				return null;
+			return additionalInfo;
+		}
+	}
+
+	/** @hide */
+	public static boolean isHookEnabled(Member hookMethod, XC_MethodHook callback) {
+		synchronized (sHookedMethods) {
+			AdditionalHookInfo additionalInfo = sHookedMethods.get(hookMethod);
+			if (additionalInfo == null)
+				return false;
+			CopyOnWriteSortedSet<XC_MethodHook> callbacks = additionalInfo.callbacks;
+			return callbacks.contains(callback) && callbacks.isEnabled(callback)
+					&& !isModuleDisabled(callbacks.getOwner(callback));
+		}
+	}
+
+	/**
+	 * Enables or disables all method hooks of a module, including the ones it adds later.
+	 * This is independent from {@link XC_MethodHook.Unhook#setEnabled}: a hook is only called
+	 * if both the hook itself and its module are enabled.
+	 *
+	 * <p>Hooks belong to the module which registered them. They are attributed while the module is
+	 * initialized and while its {@link IXposedHookLoadPackage} and
+	 * {@link IXposedHookInitPackageResources} callbacks are running. Hooks registered elsewhere
+	 * belong to the module which loaded the callback class, if any.
+	 *
+	 * @param moduleClassLoader The class loader of the module, e.g. {@code getClass().getClassLoader()}.
+	 * @param enabled {@code false} to skip the module's hooks.
+	 */
+	public static void setModuleHooksEnabled(ClassLoader moduleClassLoader, boolean enabled) {
+		if (moduleClassLoader == null)
+			throw new IllegalArgumentException("moduleClassLoader must not be null");
+
+		synchronized (sHookedMethods) {
+			Set<ClassLoader> disabledModules = sDisabledModules;
+			if (disabledModules.contains(moduleClassLoader) != enabled)
 				return;
+
+			Set<ClassLoader> newDisabledModules = new HashSet<>(disabledModules);
+			if (enabled)
+				newDisabledModules.remove(moduleClassLoader);
+			else
+				newDisabledModules.add(moduleClassLoader);
+			sDisabledModules = newDisabledModules;
+
+			for (AdditionalHookInfo additionalInfo : sHookedMethods.values()) {
+				CopyOnWriteSortedSet<XC_MethodHook> callbacks = additionalInfo.callbacks;
+				if (callbacks.hasOwner(moduleClassLoader))
+					callbacks.updateSnapshot();
+			}
 		}
-		callbacks.remove(callback);
+	}
+
+	/**
+	 * Returns whether the hooks of a module are enabled, see {@link #setModuleHooksEnabled}.
+	 */
+	public static boolean areModuleHooksEnabled(ClassLoader moduleClassLoader) {
+		return !sDisabledModules.contains(moduleClassLoader);
+	}
+
+	private static boolean isModuleDisabled(ClassLoader owner) {
+		Set<ClassLoader> disabledModules = sDisabledModules;
+		return owner != null && !disabledModules.isEmpty() && disabledModules.contains(owner);
+	}
+
+	/**
+	 * Marks the current thread as executing code of the given module, so hooks which are registered
+	 * meanwhile are attributed to it. Returns the previous module, which must be passed to
+	 * {@link #exitModule} afterwards.
+	 */
+	/*package*/ static ClassLoader enterModule(ClassLoader moduleClassLoader) {
+		ClassLoader previous = sCurrentModule.get();
+		sCurrentModule.set(moduleClassLoader);
+		return previous;
+	}
+
+	/*package*/ static void exitModule(ClassLoader previous) {
+		sCurrentModule.set(previous);
+	}
+
+	/**
+	 * Returns the class loader of the module which registers a hook. Callbacks provided by the
+	 * framework itself (e.g. {@link XC_MethodReplacement#DO_NOTHING}) don't tell anything about
+	 * the module, so these can only be attributed while the module's code is known to be running.
+	 */
+	private static ClassLoader getCallingModule(XC_MethodHook callback) {
+		ClassLoader module = sCurrentModule.get();
+		if (module != null)
+			return module;
+
+		ClassLoader callbackClassLoader = callback.getClass().getClassLoader();
+		if (callbackClassLoader == XposedBridge.class.getClassLoader() || callbackClassLoader == BOOTCLASSLOADER)
+			return null;
+		return callbackClassLoader;
 	}
 
 	/**
@@ -291,7 +473,15 @@ public final class XposedBridge {
 			}
 		}
 
-		Object[] callbacksSnapshot = additionalInfo.callbacks.getSnapshot();
+		// only take the lock once a callback disabled by the circuit breaker is due
+		long reenableTime = additionalInfo.reenableTime;
+		if (reenableTime != 0) {
+			long now = SystemClock.elapsedRealtime();
+			if (now >= reenableTime)
+				additionalInfo.reenableCallbacks(now);
+		}
+
+		Object[] callbacksSnapshot = applyGuards(additionalInfo.callbacks.getSnapshot(), method, thisObject, args);
 		final int callbacksLength = callbacksSnapshot.length;
 		if (callbacksLength == 0) {
 			try {
@@ -302,6 +492,10 @@ public final class XposedBridge {
 			}
 		}
 
+		// The first callback returns early with a constant, so the others would never be called
+		if (callbacksSnapshot[0] instanceof XC_MethodReplacement.ConstantReplacement)
+			return ((XC_MethodReplacement.ConstantReplacement) callbacksSnapshot[0]).result;
+
 		MethodHookParam param = new MethodHookParam();
 		param.method = method;
 		param.thisObject = thisObject;
@@ -314,6 +508,7 @@ public final class XposedBridge {
 				((XC_MethodHook) callbacksSnapshot[beforeIdx]).beforeHookedMethod(param);
 			} catch (Throwable t) {
 				XposedBridge.log(t);
+				additionalInfo.recordFailure(method, (XC_MethodHook) callbacksSnapshot[beforeIdx]);
 
 				// reset result (ignoring what the unexpectedly exiting callback did)
 				param.setResult(null);
@@ -348,6 +543,7 @@ public final class XposedBridge {
 				((XC_MethodHook) callbacksSnapshot[afterIdx]).afterHookedMethod(param);
 			} catch (Throwable t) {
 				XposedBridge.log(t);
+				additionalInfo.recordFailure(method, (XC_MethodHook) callbacksSnapshot[afterIdx]);
 
 				// reset to last result (ignoring what the unexpectedly exiting callback did)
 				if (lastThrowable == null)
@@ -364,6 +560,74 @@ public final class XposedBridge {
 			return param.getResult();
 	}
 
+	/**
+	 * Removes the callbacks whose {@link XC_MethodHook.Guard} doesn't match this invocation.
+	 * Returns the original array if all callbacks should be called, and doesn't allocate anything
+	 * if none of them should be called.
+	 */
+	private static Object[] applyGuards(Object[] callbacks, Member method, Object thisObject, Object[] args) {
+		final int length = callbacks.length;
+		if (length > 64)
+			return applyGuardsSlow(callbacks, method, thisObject, args);
+
+		// guards might have side effects (e.g. sampling), so each of them is only called once
+		long matches = 0;
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if (matchesGuard((XC_MethodHook) callbacks[i], method, thisObject, args)) {
+				matches |= 1L << i;
+				count++;
+			}
+		}
+
+		if (count == length)
+			return callbacks;
+		else if (count == 0)
+			return EMPTY_ARRAY;
+
+		Object[] filtered = new Object[count];
+		count = 0;
+		for (int i = 0; i < length; i++) {
+			if ((matches & (1L << i)) != 0)
+				filtered[count++] = callbacks[i];
+		}
+		return filtered;
+	}
+
+	/** Like {@link #applyGuards}, for methods with lots of callbacks. */
+	private static Object[] applyGuardsSlow(Object[] callbacks, Member method, Object thisObject, Object[] args) {
+		Object[] filtered = new Object[callbacks.length];
+		int count = 0;
+		for (Object callback : callbacks) {
+			if (matchesGuard((XC_MethodHook) callback, method, thisObject, args))
+				filtered[count++] = callback;
+		}
+
+		if (count == callbacks.length)
+			return callbacks;
+		else if (count == 0)
+			return EMPTY_ARRAY;
+		return Arrays.copyOf(filtered, count);
+	}
+
+	private static boolean matchesGuard(XC_MethodHook callback, Member method, Object thisObject, Object[] args) {
+		XC_MethodHook.Guard guard = callback.guard;
+		if (guard == null)
+			return true;
+		else if (guard.failed)
+			return false;
+
+		try {
+			return guard.matches(method, thisObject, args);
+		} catch (Throwable t) {
+			// log only once, a broken guard would otherwise flood the log on hot methods
+			guard.failed = true;
+			log("Guard of callback " + callback + " for " + method + " threw an exception, the callback won't be called anymore");
+			log(t);
+			return false;
+		}
+	}
+
 	/**
 	 * Adds a callback to be executed when an app ("Android package") is loaded.
 	 *
@@ -386,9 +650,13 @@ public final class XposedBridge {
 	 * in your module class and Xposed will take care of registering it as a callback.
 	 *
 	 * @param callback The callback to be executed.
+	 * @throws IllegalStateException If resource hooks are disabled.
 	 * @hide
 	 */
 	public static void hookInitPackageResources(XC_InitPackageResources callback) {
+		if (!XposedInit.ensureResourcesHooked())
+			throw new IllegalStateException("Resource hooks are disabled, cannot register " + callback);
+
 		synchronized (sInitPackageResourcesCallbacks) {
 			sInitPackageResourcesCallbacks.add(callback);
 		}
@@ -489,21 +757,42 @@ public final class XposedBridge {
 	/*package*/ static native void closeFilesBeforeForkNative();
 	/*package*/ static native void reopenFilesAfterForkNative();
 
-	/** @hide */
+	/**
+	 * A sorted set which is optimized for reading. Elements can be disabled, which excludes them
+	 * from the snapshot until they're enabled again.
+	 *
+	 * @hide
+	 */
 	public static final class CopyOnWriteSortedSet<E> {
 		private transient volatile Object[] elements = EMPTY_ARRAY;
+		// the enabled elements, this is what callers iterate over
+		private transient volatile Object[] snapshot = EMPTY_ARRAY;
+		private HashSet<Object> disabled = null;
+		// the modules which registered the elements, if known
+		private HashMap<Object, ClassLoader> owners = null;
 
 		@SuppressWarnings("UnusedReturnValue")
 		public synchronized boolean add(E e) {
+			return add(e, null);
+		}
+
+		/*package*/ synchronized boolean add(E e, ClassLoader owner) {
 			int index = indexOf(e);
 			if (index >= 0)
 				return false;
 
+			if (owner != null) {
+				if (owners == null)
+					owners = new HashMap<>();
+				owners.put(e, owner);
+			}
+
 			Object[] newElements = new Object[elements.length + 1];
 			System.arraycopy(elements, 0, newElements, 0, elements.length);
 			newElements[elements.length] = e;
 			Arrays.sort(newElements);
 			elements = newElements;
+			updateSnapshot();
 			return true;
 		}
 
@@ -517,9 +806,47 @@ public final class XposedBridge {
 			System.arraycopy(elements, 0, newElements, 0, index);
 			System.arraycopy(elements, index + 1, newElements, index, elements.length - index - 1);
 			elements = newElements;
+			if (disabled != null)
+				disabled.remove(e);
+			if (owners != null)
+				owners.remove(e);
+			updateSnapshot();
 			return true;
 		}
 
+		public synchronized boolean contains(E e) {
+			return indexOf(e) >= 0;
+		}
+
+		/**
+		 * Includes or excludes an element from the snapshot. The state is kept until the
+		 * element is removed.
+		 */
+		public synchronized void setEnabled(E e, boolean enabled) {
+			if (enabled) {
+				if (disabled == null || !disabled.remove(e))
+					return;
+			} else {
+				if (disabled == null)
+					disabled = new HashSet<>();
+				if (!disabled.add(e))
+					return;
+			}
+			updateSnapshot();
+		}
+
+		public synchronized boolean isEnabled(E e) {
+			return disabled == null || !disabled.contains(e);
+		}
+
+		/*package*/ synchronized ClassLoader getOwner(E e) {
+			return (owners != null) ? owners.get(e) : null;
+		}
+
+		/*package*/ synchronized boolean hasOwner(ClassLoader owner) {
+			return owners != null && owners.containsValue(owner);
+		}
+
 		private int indexOf(Object o) {
 			for (int i = 0; i < elements.length; i++) {
 				if (o.equals(elements[i]))
@@ -528,20 +855,151 @@ public final class XposedBridge {
 			return -1;
 		}
 
+		/** Returns the enabled elements. */
 		public Object[] getSnapshot() {
-			return elements;
+			return snapshot;
+		}
+
+		/*package*/ synchronized void updateSnapshot() {
+			Object[] elements = this.elements;
+			Object[] newSnapshot = new Object[elements.length];
+			int count = 0;
+			for (Object element : elements) {
+				if (disabled != null && disabled.contains(element))
+					continue;
+				if (owners != null && isModuleDisabled(owners.get(element)))
+					continue;
+				newSnapshot[count++] = element;
+			}
+			snapshot = (count == elements.length) ? elements : Arrays.copyOf(newSnapshot, count);
 		}
 	}
 
 	private static class AdditionalHookInfo {
-		final CopyOnWriteSortedSet<XC_MethodHook> callbacks;
+		final CopyOnWriteSortedSet<XC_MethodHook> callbacks = new CopyOnWriteSortedSet<>();
 		final Class<?>[] parameterTypes;
 		final Class<?> returnType;
+		final int slot;
 
-		private AdditionalHookInfo(CopyOnWriteSortedSet<XC_MethodHook> callbacks, Class<?>[] parameterTypes, Class<?> returnType) {
-			this.callbacks = callbacks;
+		// only accessed when callbacks fail, so simply synchronized on this object
+		private HashMap<XC_MethodHook, FailureWindow> failures = null;
+		// callbacks which opted out of the circuit breaker, synchronized on this object as well
+		private HashSet<XC_MethodHook> breakerExempt = null;
+		// when the next callback disabled by the circuit breaker is due to be enabled again, or 0
+		volatile long reenableTime = 0;
+
+		private AdditionalHookInfo(Class<?>[] parameterTypes, Class<?> returnType, int slot) {
 			this.parameterTypes = parameterTypes;
 			this.returnType = returnType;
+			this.slot = slot;
+		}
+
+		static AdditionalHookInfo create(Member hookMethod) {
+			if (runtime == RUNTIME_ART) {
+				return new AdditionalHookInfo(null, null, 0);
+			} else if (hookMethod instanceof Method) {
+				return new AdditionalHookInfo(((Method) hookMethod).getParameterTypes(),
+						((Method) hookMethod).getReturnType(), getIntField(hookMethod, "slot"));
+			} else {
+				return new AdditionalHookInfo(((Constructor<?>) hookMethod).getParameterTypes(),
+						null, getIntField(hookMethod, "slot"));
+			}
+		}
+
+		/**
+		 * Counts an exception thrown by the callback. If it fails too often within a short time,
+		 * the callback is disabled for this method until the cool-down period has passed.
+		 */
+		void recordFailure(Member method, XC_MethodHook callback) {
+			final int maxFailures = sCircuitBreakerMaxFailures;
+			if (maxFailures <= 0)
+				return;
+
+			final long now = SystemClock.elapsedRealtime();
+			final long coolDownMillis = sCircuitBreakerCoolDownMillis;
+			synchronized (this) {
+				if (breakerExempt != null && breakerExempt.contains(callback))
+					return;
+
+				if (failures == null)
+					failures = new HashMap<>();
+
+				FailureWindow window = failures.get(callback);
+				if (window != null && window.disabledUntil != 0)
+					return; // already disabled, this is an invocation which was still running
+
+				if (window == null || now - window.start > sCircuitBreakerWindowMillis) {
+					window = new FailureWindow(now);
+					failures.put(callback, window);
+				}
+
+				if (++window.count < maxFailures)
+					return;
+
+				window.disabledUntil = now + coolDownMillis;
+				if (reenableTime == 0 || window.disabledUntil < reenableTime)
+					reenableTime = window.disabledUntil;
+				callbacks.setEnabled(callback, false);
+			}
+
+			log("Disabled callback " + callback + " for " + method + " for " + coolDownMillis
+					+ " ms after it threw " + maxFailures + " exceptions within " + sCircuitBreakerWindowMillis + " ms");
+		}
+
+		/** Enables the callbacks whose cool-down period has passed. */
+		synchronized void reenableCallbacks(long now) {
+			if (reenableTime == 0 || now < reenableTime)
+				return;
+
+			long next = 0;
+			Iterator<Map.Entry<XC_MethodHook, FailureWindow>> it = failures.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<XC_MethodHook, FailureWindow> entry = it.next();
+				long disabledUntil = entry.getValue().disabledUntil;
+				if (disabledUntil == 0)
+					continue;
+
+				if (now >= disabledUntil) {
+					it.remove();
+					callbacks.setEnabled(entry.getKey(), true);
+				} else if (next == 0 || disabledUntil < next) {
+					next = disabledUntil;
+				}
+			}
+			reenableTime = next;
+		}
+
+		/** Forgets the exceptions of a callback, without changing whether it's enabled. */
+		synchronized void resetFailures(XC_MethodHook callback) {
+			if (failures != null)
+				failures.remove(callback);
+		}
+
+		synchronized void setCircuitBreakerEnabled(XC_MethodHook callback, boolean enabled) {
+			if (enabled) {
+				if (breakerExempt != null)
+					breakerExempt.remove(callback);
+				return;
+			}
+
+			if (breakerExempt == null)
+				breakerExempt = new HashSet<>();
+			breakerExempt.add(callback);
+
+			FailureWindow window = (failures != null) ? failures.remove(callback) : null;
+			if (window != null && window.disabledUntil != 0)
+				callbacks.setEnabled(callback, true);
+		}
+	}
+
+	private static final class FailureWindow {
+		final long start;
+		int count = 0;
+		// set while the callback is disabled by the circuit breaker
+		long disabledUntil = 0;
+
+		private FailureWindow(long start) {
+			this.start = start;
 		}
 	}
 }
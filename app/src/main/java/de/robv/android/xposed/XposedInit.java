@@ -24,6 +24,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.zip.ZipEntry;
@@ -60,6 +61,8 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 	private static final String INSTANT_RUN_CLASS = "com.android.tools.fd.runtime.BootstrapApplication";
 
 	private static boolean disableResources = false;
+	private static boolean resourcesHookable = false;
+	private static boolean resourcesHooked = false;
 
 	private XposedInit() {}
 
@@ -231,6 +234,41 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 			return;
 		}
 
+		// The hooks are only needed once a module registers replacements or layout hooks.
+		// Until then, apps don't pay for the Resources and TypedArray substitution.
+		resourcesHookable = true;
+		XResources.setHookInstaller(new Runnable() {
+			@Override
+			public void run() {
+				ensureResourcesHooked();
+			}
+		});
+	}
+
+	/**
+	 * Installs the hooks for resource replacements, unless this has been done already.
+	 * Called when the first module registers an {@link IXposedHookInitPackageResources} callback
+	 * or uses system-wide replacements. Returns {@code false} if resource hooks are disabled.
+	 */
+	/*package*/ static synchronized boolean ensureResourcesHooked() {
+		if (resourcesHookable && !resourcesHooked) {
+			resourcesHooked = true;
+
+			List<XC_MethodHook.Unhook> unhooks = new ArrayList<>();
+			try {
+				installResourcesHooks(unhooks);
+			} catch (Throwable t) {
+				Log.e(TAG, "Cannot hook resources", t);
+				disableResources = true;
+				// don't leave hooks behind which expect the rest of the setup
+				for (XC_MethodHook.Unhook unhook : unhooks)
+					unhook.unhook();
+			}
+		}
+		return !disableResources;
+	}
+
+	private static void installResourcesHooks(List<XC_MethodHook.Unhook> unhooks) throws Throwable {
 		/*
 		 * getTopLevelResources(a)
 		 *   -> getTopLevelResources(b)
@@ -253,7 +291,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 			classResKey = Class.forName("android.content.res.ResourcesKey");
 		}
 		if (SDK_INT > 23){
-			hookAllMethods(classGTLR, "getOrCreateResources", new XC_MethodHook() {
+			unhooks.addAll(hookAllMethods(classGTLR, "getOrCreateResources", new XC_MethodHook() {
 				@SuppressLint("NewApi")
 				@Override
 				protected void afterHookedMethod(MethodHookParam param) throws Throwable {
@@ -293,16 +331,16 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 
 					param.setResult(newRes);
 				}
-			});
+			}));
 		}else {
-			hookAllConstructors(classResKey, new XC_MethodHook() {
+			unhooks.addAll(hookAllConstructors(classResKey, new XC_MethodHook() {
 				@Override
 				protected void afterHookedMethod(MethodHookParam param) throws Throwable {
 					latestResKey.set(param.thisObject);
 				}
-			});
+			}));
 
-			hookAllMethods(classGTLR, "getTopLevelResources", new XC_MethodHook() {
+			unhooks.addAll(hookAllMethods(classGTLR, "getTopLevelResources", new XC_MethodHook() {
 				@Override
 				protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
 					latestResKey.set(null);
@@ -352,11 +390,11 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 
 					param.setResult(newRes);
 				}
-			});
+			}));
 		}
 		if (SDK_INT >= 19) {
 			// This method exists only on CM-based ROMs
-			hookAllMethods(classGTLR, "getTopLevelThemedResources", new XC_MethodHook() {
+			unhooks.addAll(hookAllMethods(classGTLR, "getTopLevelThemedResources", new XC_MethodHook() {
 				@Override
 				protected void afterHookedMethod(MethodHookParam param) throws Throwable {
 					Object result = param.getResult();
@@ -382,28 +420,29 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 
 					param.setResult(newRes);
 				}
-			});
+			}));
 		}
 
 		// Replace TypedArrays with XTypedArrays
-		hookAllConstructors(TypedArray.class, new XC_MethodHook() {
+		unhooks.addAll(hookAllConstructors(TypedArray.class, new XC_MethodHook() {
 			@Override
 			protected void afterHookedMethod(MethodHookParam param) throws Throwable {
 				TypedArray typedArray = (TypedArray) param.thisObject;
 				Resources res = typedArray.getResources();
+				// Convert all of them, as pooled arrays are reused after replacements have been added
 				if (res instanceof XResources) {
 					XposedBridge.setObjectClass(typedArray, XResources.XTypedArray.class);
 					((XResources.XTypedArray) typedArray).initObject((XResources) res);
 				}
 			}
-		});
+		}));
 
-		// Replace system resources
+		XResources.init(latestResKey, unhooks);
+
+		// Replace system resources, as the last step because it can't be undone
 		XResources systemRes = (XResources) XposedBridge.cloneToSubclass(Resources.getSystem(), XResources.class);
 		systemRes.initObject(null);
 		setStaticObjectField(Resources.class, "mSystem", systemRes);
-
-		XResources.init(latestResKey);
 	}
 
 	private static boolean needsToCloseFilesForFork() {
@@ -512,6 +551,8 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 
 		ClassLoader mcl = new PathClassLoader(apk, XposedBridge.BOOTCLASSLOADER);
 		BufferedReader moduleClassesReader = new BufferedReader(new InputStreamReader(is));
+		// hooks which are registered while initializing the module belong to it
+		ClassLoader previousModule = XposedBridge.enterModule(mcl);
 		try {
 			String moduleClassName;
 			while ((moduleClassName = moduleClassesReader.readLine()) != null) {
@@ -526,7 +567,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 					if (!IXposedMod.class.isAssignableFrom(moduleClass)) {
 						Log.e(TAG, "    This class doesn't implement any sub-interface of IXposedMod, skipping it");
 						continue;
-					} else if (disableResources && IXposedHookInitPackageResources.class.isAssignableFrom(moduleClass)) {
+					} else if (IXposedHookInitPackageResources.class.isAssignableFrom(moduleClass) && !ensureResourcesHooked()) {
 						Log.e(TAG, "    This class requires resource-related hooks (which are disabled), skipping it.");
 						continue;
 					}
@@ -560,6 +601,7 @@ import static de.robv.android.xposed.XposedHelpers.setStaticObjectField;
 		} catch (IOException e) {
 			Log.e(TAG, "  Failed to load module from " + apk, e);
 		} finally {
+			XposedBridge.exitModule(previousModule);
 			closeSilently(is);
 			closeSilently(zipFile);
 		}
@@ -152,6 +152,60 @@ public abstract class BaseService {
 	}
 
 
+	/**
+	 * Determine the size and modification time of multiple files at once.
+	 *
+	 * <p>Services which use IPC can retrieve all the information in a single round trip, so this
+	 * should be preferred over repeated calls to {@link #statFile} if the files are known in advance.
+	 *
+	 * @param filenames The absolute paths of the files to check.
+	 * @return An array with one {@link FileResult} object for each file, in the same order.
+	 *         <p>An entry is {@code null} in the cases where {@link #statFile} would throw a
+	 *         {@link FileNotFoundException}, i.e. if the file doesn't exist or can't be accessed.
+	 * @throws IOException In case any other error occurred while retrieving the information.
+	 *         This fails the whole call.
+	 */
+	public FileResult[] statFiles(String[] filenames) throws IOException {
+		FileResult[] results = new FileResult[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			try {
+				results[i] = statFile(filenames[i]);
+			} catch (FileNotFoundException ignored) {}
+		}
+		return results;
+	}
+
+	/**
+	 * Read multiple files into memory at once, optionally only if they have changed since the last time.
+	 *
+	 * <p>Services which use IPC can read all files in a single round trip, so this should be
+	 * preferred over repeated calls to {@link #readFile(String, long, long)} for small files.
+	 *
+	 * @param filenames The absolute paths of the files to read.
+	 * @param previousSizes Optional: File sizes of last read, in the same order as {@code filenames}.
+	 * @param previousTimes Optional: File modification times of last read, in the same order as {@code filenames}.
+	 * @return An array with one {@link FileResult} object for each file, in the same order.
+	 *         <p>An entry is {@code null} in the cases where {@link #readFile(String, long, long)}
+	 *         would throw a {@link FileNotFoundException}, i.e. if the file doesn't exist, can't be
+	 *         accessed or is a directory.
+	 *         The {@link FileResult#content} field might be {@code null} if the file is unmodified.
+	 * @throws IOException In case any other error occurred while reading the files.
+	 *         This fails the whole call.
+	 */
+	public FileResult[] readFiles(String[] filenames, long[] previousSizes, long[] previousTimes) throws IOException {
+		ensureSameLength(filenames, previousSizes, previousTimes);
+		FileResult[] results = new FileResult[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			try {
+				results[i] = readFile(filenames[i],
+						previousSizes != null ? previousSizes[i] : 0,
+						previousTimes != null ? previousTimes[i] : 0);
+			} catch (FileNotFoundException ignored) {}
+		}
+		return results;
+	}
+
+
 	// ----------------------------------------------------------------------------
 	/*package*/ BaseService() {}
 
@@ -161,6 +215,29 @@ public abstract class BaseService {
 		}
 	}
 
+	/*package*/ static void ensureSameLength(String[] filenames, long[] previousSizes, long[] previousTimes) {
+		if ((previousSizes != null && previousSizes.length != filenames.length)
+				|| (previousTimes != null && previousTimes.length != filenames.length)) {
+			throw new IllegalArgumentException("Number of previous sizes/times doesn't match the number of files");
+		}
+	}
+
+	/**
+	 * Returns whether {@link #throwCommonIOException} throws a {@link FileNotFoundException}
+	 * for this error, which the batch methods report as a {@code null} entry.
+	 */
+	/*package*/ static boolean isFileNotFoundError(int errno) {
+		switch (errno) {
+			case 1: // EPERM
+			case 2: // ENOENT
+			case 13: // EACCES
+			case 21: // EISDIR
+				return true;
+			default:
+				return false;
+		}
+	}
+
 	/*package*/ static void throwCommonIOException(int errno, String errorMsg, String filename, String defaultText) throws IOException {
 		switch (errno) {
 			case 1: // EPERM
@@ -4,8 +4,11 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.TransactionTooLargeException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /** @hide */
 public final class BinderService extends BaseService {
@@ -146,16 +149,153 @@ public final class BinderService extends BaseService {
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 * <p>Files which don't fit into a single transaction are read in chunks while the stream is consumed.
+	 */
+	@Override
+	public InputStream getFileInputStream(String filename) throws IOException {
+		return getFileInputStream(filename, 0, 0).stream;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Files which don't fit into a single transaction are read in chunks while the stream is consumed.
+	 */
+	@Override
+	public FileResult getFileInputStream(String filename, long previousSize, long previousTime) throws IOException {
+		// Most files are small, so try to read the whole file with a single transaction first
+		FileResult result;
+		try {
+			result = readFile(filename, 0, 0, previousSize, previousTime);
+		} catch (IOException e) {
+			if (!(e.getCause() instanceof TransactionTooLargeException))
+				throw e;
+			result = null;
+		}
+
+		if (result != null) {
+			if (result.content == null)
+				return result;
+			return new FileResult(new ByteArrayInputStream(result.content), result.size, result.mtime);
+		}
+
+		// The reply exceeded the transaction buffer, so read the file in chunks instead
+		FileResult stat = statFile(filename);
+		if (previousSize == stat.size && previousTime == stat.mtime)
+			return stat;
+
+		InputStream stream = new ChunkedFileInputStream(this, filename, stat.size, stat.mtime, STREAM_CHUNK_SIZE, null);
+		return new FileResult(stream, stat.size, stat.mtime);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>This implementation retrieves the information for all files with a single transaction.
+	 */
+	@Override
+	public FileResult[] statFiles(String[] filenames) throws IOException {
+		FileResult[] results = transactFiles(STAT_FILES_TRANSACTION, filenames, null, null);
+		return (results != null) ? results : super.statFiles(filenames);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>This implementation reads all files with a single transaction. Keep in mind that the
+	 * total size of the files is restricted by the maximum size of a binder transaction.
+	 */
+	@Override
+	public FileResult[] readFiles(String[] filenames, long[] previousSizes, long[] previousTimes) throws IOException {
+		ensureSameLength(filenames, previousSizes, previousTimes);
+		FileResult[] results = transactFiles(READ_FILES_TRANSACTION, filenames, previousSizes, previousTimes);
+		return (results != null) ? results : super.readFiles(filenames, previousSizes, previousTimes);
+	}
+
+	/**
+	 * Executes a batch transaction for multiple files.
+	 * Returns {@code null} if the remote service doesn't support this kind of transaction.
+	 */
+	private FileResult[] transactFiles(int code, String[] filenames, long[] previousSizes, long[] previousTimes) throws IOException {
+		if (!mSupportsBatchTransactions)
+			return null;
+
+		for (String filename : filenames)
+			ensureAbsolutePath(filename);
+
+		Parcel data = Parcel.obtain();
+		Parcel reply = Parcel.obtain();
+		data.writeInterfaceToken(INTERFACE_TOKEN);
+		data.writeInt(filenames.length);
+		for (int i = 0; i < filenames.length; i++) {
+			data.writeString(filenames[i]);
+			data.writeLong(previousSizes != null ? previousSizes[i] : 0);
+			data.writeLong(previousTimes != null ? previousTimes[i] : 0);
+		}
+
+		boolean handled;
+		try {
+			handled = mRemote.transact(code, data, reply, 0);
+		} catch (RemoteException e) {
+			data.recycle();
+			reply.recycle();
+			throw new IOException(e);
+		}
+
+		if (!handled) {
+			// Older versions of the service don't know this transaction, so fall back to single calls
+			data.recycle();
+			reply.recycle();
+			mSupportsBatchTransactions = false;
+			return null;
+		}
+
+		reply.readException();
+		int count = reply.readInt();
+		if (count != filenames.length) {
+			reply.recycle();
+			data.recycle();
+			throw new IOException("Expected " + filenames.length + " results, but got " + count);
+		}
+
+		FileResult[] results = new FileResult[count];
+		for (int i = 0; i < count; i++) {
+			int errno = reply.readInt();
+			String errorMsg = reply.readString();
+			long size = reply.readLong();
+			long time = reply.readLong();
+			byte[] content = (code == READ_FILES_TRANSACTION) ? reply.createByteArray() : null;
+
+			if (errno == 0) {
+				results[i] = (content != null) ? new FileResult(content, size, time) : new FileResult(size, time);
+			} else if (!isFileNotFoundError(errno)) {
+				reply.recycle();
+				data.recycle();
+				throwCommonIOException(errno, errorMsg, filenames[i],
+						(code == READ_FILES_TRANSACTION) ? " while reading " : " while retrieving attributes for ");
+			}
+		}
+		reply.recycle();
+		data.recycle();
+		return results;
+	}
+
+
 	// ----------------------------------------------------------------------------
 	private static final String INTERFACE_TOKEN = "de.robv.android.xposed.IXposedService";
 
 	private static final int ACCESS_FILE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 2;
 	private static final int STAT_FILE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 3;
 	private static final int READ_FILE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 4;
+	private static final int STAT_FILES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 5;
+	private static final int READ_FILES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 6;
+
+	// Stay well below the binder transaction buffer limit (1 MB), which is shared by the whole process
+	private static final int STREAM_CHUNK_SIZE = 256 * 1024;
 
 	private static final String[] SERVICE_NAMES = { "user.xposed.app", "user.xposed.system" };
 	private static final BinderService[] sServices = new BinderService[2];
 	private final IBinder mRemote;
+	private volatile boolean mSupportsBatchTransactions = true;
 
 	private BinderService(int target) {
 		IBinder binder = ServiceManager.getService(SERVICE_NAMES[target]);
@@ -163,4 +303,8 @@ public final class BinderService extends BaseService {
 			throw new IllegalStateException("Service " + SERVICE_NAMES[target] + " does not exist");
 		this.mRemote = binder;
 	}
+
+	/*package*/ BinderService(IBinder remote) {
+		this.mRemote = remote;
+	}
 }
@@ -0,0 +1,248 @@
+package de.robv.android.xposed.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wraps another service and keeps the content of recently read small files in memory.
+ *
+ * <p>Cached content is always validated with the size and modification time of the file, using
+ * the conditional variants of {@link #readFile}. So a cache hit costs a single call to the wrapped
+ * service, and unmodified files are never transferred again.
+ *
+ * @hide
+ */
+public final class CachingService extends BaseService {
+	private final BaseService mService;
+	private final int mMaxBytes;
+	private final int mMaxEntryBytes;
+
+	// access-ordered, i.e. the least recently used entry comes first
+	private final LinkedHashMap<String, FileResult> mCache = new LinkedHashMap<>(16, 0.75f, true);
+	private int mCachedBytes = 0;
+
+	private long mHits = 0;
+	private long mMisses = 0;
+	private long mBytesSaved = 0;
+
+	/**
+	 * Creates a new caching wrapper.
+	 *
+	 * @param service The service which is used to actually access the files.
+	 * @param maxBytes The maximum total size of the cached file contents.
+	 */
+	public CachingService(BaseService service, int maxBytes) {
+		if (service == null)
+			throw new IllegalArgumentException("service must not be null");
+		mService = service;
+		mMaxBytes = maxBytes;
+		mMaxEntryBytes = maxBytes / 4;
+	}
+
+	/** Returns the number of reads which were served from the cache. */
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	/** Returns the number of reads which had to transfer the file content. */
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	/** Returns the number of bytes which didn't have to be transferred thanks to the cache. */
+	public synchronized long getBytesSaved() {
+		return mBytesSaved;
+	}
+
+	/** Returns the total size of the currently cached file contents. */
+	public synchronized int getCachedBytes() {
+		return mCachedBytes;
+	}
+
+	/** Removes the cached content for a file, if there is any. */
+	public synchronized void invalidate(String filename) {
+		FileResult removed = mCache.remove(filename);
+		if (removed != null)
+			mCachedBytes -= removed.content.length;
+	}
+
+	/** Removes all cached file contents. */
+	public synchronized void clear() {
+		mCache.clear();
+		mCachedBytes = 0;
+	}
+
+	@Override
+	public boolean hasDirectFileAccess() {
+		return mService.hasDirectFileAccess();
+	}
+
+	@Override
+	public boolean checkFileAccess(String filename, int mode) {
+		return mService.checkFileAccess(filename, mode);
+	}
+
+	@Override
+	public boolean checkFileExists(String filename) {
+		return mService.checkFileExists(filename);
+	}
+
+	@Override
+	public FileResult statFile(String filename) throws IOException {
+		return mService.statFile(filename);
+	}
+
+	@Override
+	public FileResult[] statFiles(String[] filenames) throws IOException {
+		return mService.statFiles(filenames);
+	}
+
+	@Override
+	public byte[] readFile(String filename) throws IOException {
+		return readFile(filename, 0, 0).content;
+	}
+
+	@Override
+	public FileResult readFile(String filename, long previousSize, long previousTime) throws IOException {
+		FileResult cached = getCached(filename);
+		FileResult result;
+		try {
+			result = (cached != null)
+					? mService.readFile(filename, cached.size, cached.mtime)
+					: mService.readFile(filename, previousSize, previousTime);
+		} catch (IOException e) {
+			invalidate(filename);
+			throw e;
+		}
+		return handleResult(filename, cached, result, previousSize, previousTime);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Partial reads are not cached and always passed to the wrapped service.
+	 */
+	@Override
+	public FileResult readFile(String filename, int offset, int length, long previousSize, long previousTime) throws IOException {
+		if (offset <= 0 && length <= 0)
+			return readFile(filename, previousSize, previousTime);
+		return mService.readFile(filename, offset, length, previousSize, previousTime);
+	}
+
+	@Override
+	public FileResult[] readFiles(String[] filenames, long[] previousSizes, long[] previousTimes) throws IOException {
+		ensureSameLength(filenames, previousSizes, previousTimes);
+		final int count = filenames.length;
+		FileResult[] cached = new FileResult[count];
+		long[] sizes = new long[count];
+		long[] times = new long[count];
+		for (int i = 0; i < count; i++) {
+			cached[i] = getCached(filenames[i]);
+			if (cached[i] != null) {
+				sizes[i] = cached[i].size;
+				times[i] = cached[i].mtime;
+			} else {
+				sizes[i] = (previousSizes != null) ? previousSizes[i] : 0;
+				times[i] = (previousTimes != null) ? previousTimes[i] : 0;
+			}
+		}
+
+		FileResult[] results = mService.readFiles(filenames, sizes, times);
+		for (int i = 0; i < count; i++) {
+			if (results[i] == null) {
+				invalidate(filenames[i]);
+				continue;
+			}
+			results[i] = handleResult(filenames[i], cached[i], results[i],
+					(previousSizes != null) ? previousSizes[i] : 0,
+					(previousTimes != null) ? previousTimes[i] : 0);
+		}
+		return results;
+	}
+
+	@Override
+	public InputStream getFileInputStream(String filename) throws IOException {
+		return getFileInputStream(filename, 0, 0).stream;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Large files are not cached and streamed by the wrapped service.
+	 */
+	@Override
+	public FileResult getFileInputStream(String filename, long previousSize, long previousTime) throws IOException {
+		FileResult cached = getCached(filename);
+		FileResult result;
+		if (cached != null) {
+			// One conditional read validates the cached content or returns the new one
+			result = readFile(filename, previousSize, previousTime);
+			if (result.content == null)
+				return result;
+			return new FileResult(new ByteArrayInputStream(result.content), result.size, result.mtime);
+		}
+
+		result = mService.getFileInputStream(filename, previousSize, previousTime);
+		if (result.stream == null || result.size > mMaxEntryBytes)
+			return result;
+
+		// Small enough to be cached, so the stream is read into memory anyway
+		byte[] content = new byte[(int) result.size];
+		try {
+			new DataInputStream(result.stream).readFully(content);
+		} finally {
+			result.stream.close();
+		}
+		handleResult(filename, null, new FileResult(content, result.size, result.mtime), previousSize, previousTime);
+		return new FileResult(new ByteArrayInputStream(content), result.size, result.mtime);
+	}
+
+
+	// ----------------------------------------------------------------------------
+	private synchronized FileResult getCached(String filename) {
+		return mCache.get(filename);
+	}
+
+	private synchronized void recordHit(FileResult cached) {
+		mHits++;
+		mBytesSaved += cached.content.length;
+	}
+
+	private FileResult handleResult(String filename, FileResult cached, FileResult result,
+			long previousSize, long previousTime) {
+		if (result.content == null) {
+			// Unmodified compared to the cached content (if any) or the caller's version
+			if (cached == null || (previousSize == result.size && previousTime == result.mtime))
+				return result;
+
+			recordHit(cached);
+			return new FileResult(cached.content.clone(), result.size, result.mtime);
+		}
+
+		synchronized (this) {
+			mMisses++;
+			FileResult removed = mCache.remove(filename);
+			if (removed != null)
+				mCachedBytes -= removed.content.length;
+
+			if (result.content.length <= mMaxEntryBytes) {
+				// Keep a private copy, callers might modify the returned array
+				mCache.put(filename, new FileResult(result.content.clone(), result.size, result.mtime));
+				mCachedBytes += result.content.length;
+				trimToSize();
+			}
+		}
+		return result;
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, FileResult>> it = mCache.entrySet().iterator();
+		while (mCachedBytes > mMaxBytes && it.hasNext()) {
+			mCachedBytes -= it.next().getValue().content.length;
+			it.remove();
+		}
+	}
+}
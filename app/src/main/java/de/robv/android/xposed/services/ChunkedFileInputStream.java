@@ -0,0 +1,197 @@
+package de.robv.android.xposed.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link InputStream} which reads a file in chunks via {@link BaseService#readFile(String, int, int, long, long)}.
+ *
+ * <p>Only the current chunk and the next one (which is read ahead in the background) are kept in
+ * memory. The size and modification time of the file are verified for every chunk, so an
+ * {@link IOException} is thrown if the file is modified while it's being read.
+ */
+/*package*/ final class ChunkedFileInputStream extends InputStream {
+	private static final int READ_AHEAD_THREADS = 2;
+
+	// At most two read-ahead threads, which stop when they haven't been used for a while
+	private static final ThreadPoolExecutor sReadAheadExecutor = new ThreadPoolExecutor(
+			READ_AHEAD_THREADS, READ_AHEAD_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "XposedReadAhead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	static {
+		sReadAheadExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private final BaseService mService;
+	private final String mFilename;
+	private final long mSize;
+	private final long mTime;
+	private final int mChunkSize;
+
+	private byte[] mBuffer;
+	private int mPos;
+	private long mNextOffset;
+	private Future<byte[]> mReadAhead;
+	private boolean mClosed;
+
+	/**
+	 * Creates a new stream.
+	 *
+	 * @param service The service which is used to read the chunks.
+	 * @param filename The absolute path of the file to read.
+	 * @param size The expected file size.
+	 * @param mtime The expected file modification time.
+	 * @param chunkSize The maximum number of bytes to read at once.
+	 * @param firstChunk The content at the beginning of the file, if it has already been read.
+	 *                   May be {@code null}.
+	 */
+	/*package*/ ChunkedFileInputStream(BaseService service, String filename, long size, long mtime, int chunkSize, byte[] firstChunk) {
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("File " + filename + " is too large: " + size);
+
+		mService = service;
+		mFilename = filename;
+		mSize = size;
+		mTime = mtime;
+		mChunkSize = chunkSize;
+
+		if (firstChunk != null) {
+			mBuffer = firstChunk;
+			mNextOffset = firstChunk.length;
+			startReadAhead();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureBuffer())
+			return -1;
+		return mBuffer[mPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		if (!ensureBuffer())
+			return -1;
+
+		int count = Math.min(len, mBuffer.length - mPos);
+		System.arraycopy(mBuffer, mPos, b, off, count);
+		mPos += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0 || !ensureBuffer())
+			return 0;
+
+		int count = (int) Math.min(n, mBuffer.length - mPos);
+		mPos += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		ensureOpen();
+		return (mBuffer != null) ? mBuffer.length - mPos : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mClosed = true;
+		mBuffer = null;
+		if (mReadAhead != null) {
+			mReadAhead.cancel(false);
+			mReadAhead = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkedFileInputStream{" + mFilename + ", size: " + mSize + ", offset: " + mNextOffset + "}";
+	}
+
+	private void ensureOpen() throws IOException {
+		if (mClosed)
+			throw new IOException("Stream closed");
+	}
+
+	/**
+	 * Makes sure that there's at least one byte left in the buffer, reading the next chunk if necessary.
+	 * Returns {@code false} at the end of the file.
+	 */
+	private boolean ensureBuffer() throws IOException {
+		ensureOpen();
+		if (mBuffer != null && mPos < mBuffer.length)
+			return true;
+
+		if (mNextOffset >= mSize)
+			return false;
+
+		byte[] chunk;
+		if (mReadAhead != null) {
+			try {
+				chunk = mReadAhead.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading " + mFilename);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException("Failed to read " + mFilename, cause);
+			} finally {
+				mReadAhead = null;
+			}
+		} else {
+			chunk = readChunk(mNextOffset);
+		}
+
+		mBuffer = chunk;
+		mPos = 0;
+		mNextOffset += chunk.length;
+		startReadAhead();
+		return chunk.length > 0;
+	}
+
+	private void startReadAhead() {
+		if (mNextOffset >= mSize)
+			return;
+
+		final long offset = mNextOffset;
+		mReadAhead = sReadAheadExecutor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return readChunk(offset);
+			}
+		});
+	}
+
+	private byte[] readChunk(long offset) throws IOException {
+		int length = (int) Math.min(mChunkSize, mSize - offset);
+		FileResult result = mService.readFile(mFilename, (int) offset, length, 0, 0);
+		if (result.size != mSize || result.mtime != mTime)
+			throw new IOException("File " + mFilename + " has been modified while reading it");
+		if (result.content == null || result.content.length != length)
+			throw new IOException("Unexpected chunk size while reading " + mFilename);
+		return result.content;
+	}
+}
@@ -35,6 +35,46 @@ public final class DirectAccessService extends BaseService {
 		return new FileResult(file.length(), file.lastModified());
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>This implementation checks the existence of the files directly instead of relying on exceptions.
+	 */
+	@Override
+	public FileResult[] statFiles(String[] filenames) throws IOException {
+		FileResult[] results = new FileResult[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			File file = new File(filenames[i]);
+			if (file.exists())
+				results[i] = new FileResult(file.length(), file.lastModified());
+		}
+		return results;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>This implementation checks the existence of the files directly instead of relying on exceptions.
+	 */
+	@Override
+	public FileResult[] readFiles(String[] filenames, long[] previousSizes, long[] previousTimes) throws IOException {
+		ensureSameLength(filenames, previousSizes, previousTimes);
+		FileResult[] results = new FileResult[filenames.length];
+		for (int i = 0; i < filenames.length; i++) {
+			File file = new File(filenames[i]);
+			if (!file.isFile() || !file.canRead())
+				continue;
+
+			long size = file.length();
+			long time = file.lastModified();
+			if (previousSizes != null && previousTimes != null
+					&& previousSizes[i] == size && previousTimes[i] == time) {
+				results[i] = new FileResult(size, time);
+			} else {
+				results[i] = new FileResult(readFile(filenames[i]), size, time);
+			}
+		}
+		return results;
+	}
+
 	@Override
 	public byte[] readFile(String filename) throws IOException {
 		File file = new File(filename);
@@ -0,0 +1,253 @@
+package de.robv.android.xposed.services;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the batched file transactions of {@link BinderService} against a local stand-in for the
+ * remote service, which decodes the requests and encodes the replies like the real one.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BinderServiceTest {
+	private static final String INTERFACE_TOKEN = "de.robv.android.xposed.IXposedService";
+	private static final int STAT_FILE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 3;
+	private static final int READ_FILE_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 4;
+	private static final int STAT_FILES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 5;
+	private static final int READ_FILES_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 6;
+
+	private static final int ENOENT = 2;
+	private static final int EIO = 5;
+	private static final int EACCES = 13;
+	private static final int EISDIR = 21;
+
+	private LoopbackService mRemote;
+	private BinderService mService;
+
+	@Before
+	public void setUp() {
+		mRemote = new LoopbackService();
+		mRemote.addFile("/data/a", new byte[] { 1, 2, 3 }, 1000);
+		mRemote.addFile("/data/b", new byte[] { 4, 5 }, 2000);
+		mRemote.addError("/data/missing", ENOENT);
+		mRemote.addError("/data/secret", EACCES);
+		mRemote.addError("/data/dir", EISDIR);
+		mRemote.addError("/data/broken", EIO);
+		mService = new BinderService(mRemote);
+	}
+
+	@Test
+	public void statFilesUsesOneTransaction() throws IOException {
+		FileResult[] results = mService.statFiles(new String[] { "/data/a", "/data/b" });
+
+		assertEquals(1, mRemote.mTransactions);
+		assertEquals(STAT_FILES_TRANSACTION, mRemote.mLastCode);
+		assertEquals(2, results.length);
+		assertEquals(3, results[0].size);
+		assertEquals(1000, results[0].mtime);
+		assertNull(results[0].content);
+		assertEquals(2, results[1].size);
+		assertEquals(2000, results[1].mtime);
+	}
+
+	@Test
+	public void readFilesReturnsContentAndSkipsUnmodifiedFiles() throws IOException {
+		FileResult[] results = mService.readFiles(new String[] { "/data/a", "/data/b" },
+				new long[] { 3, 0 }, new long[] { 1000, 0 });
+
+		assertEquals(1, mRemote.mTransactions);
+		assertEquals(READ_FILES_TRANSACTION, mRemote.mLastCode);
+		assertNull(results[0].content);
+		assertEquals(3, results[0].size);
+		assertEquals(1000, results[0].mtime);
+		assertArrayEquals(new byte[] { 4, 5 }, results[1].content);
+	}
+
+	@Test
+	public void fileNotFoundErrorsAreNullEntries() throws IOException {
+		String[] filenames = { "/data/missing", "/data/a", "/data/secret", "/data/dir" };
+
+		FileResult[] stats = mService.statFiles(filenames);
+		assertNull(stats[0]);
+		assertEquals(3, stats[1].size);
+		assertNull(stats[2]);
+		assertNull(stats[3]);
+
+		FileResult[] reads = mService.readFiles(filenames, null, null);
+		assertNull(reads[0]);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, reads[1].content);
+		assertNull(reads[2]);
+		assertNull(reads[3]);
+	}
+
+	@Test
+	public void otherErrorsFailTheWholeBatch() {
+		try {
+			mService.readFiles(new String[] { "/data/a", "/data/broken" }, null, null);
+			fail("IOException expected");
+		} catch (FileNotFoundException e) {
+			fail("Unexpected FileNotFoundException: " + e);
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().contains("/data/broken"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void readFilesRejectsMismatchingPreconditions() throws IOException {
+		mService.readFiles(new String[] { "/data/a", "/data/b" }, new long[] { 3 }, null);
+	}
+
+	@Test
+	public void readFilesRejectsMismatchingPreconditionsBeforeTransacting() {
+		try {
+			mService.readFiles(new String[] { "/data/a" }, null, new long[] { 1000, 2000 });
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException expected) {
+			assertEquals(0, mRemote.mTransactions);
+		} catch (IOException e) {
+			fail("Unexpected IOException: " + e);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void mismatchingResultCountIsAnError() throws IOException {
+		mRemote.mExtraResults = 1;
+		mService.statFiles(new String[] { "/data/a" });
+	}
+
+	@Test
+	public void olderServicesFallBackToSingleTransactions() throws IOException {
+		mRemote.mSupportsBatches = false;
+
+		FileResult[] results = mService.readFiles(new String[] { "/data/a", "/data/missing", "/data/b" }, null, null);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, results[0].content);
+		assertNull(results[1]);
+		assertArrayEquals(new byte[] { 4, 5 }, results[2].content);
+		// one rejected batch transaction, then one transaction per file
+		assertEquals(4, mRemote.mTransactions);
+
+		// the batch transaction isn't tried again
+		mService.statFiles(new String[] { "/data/a" });
+		assertEquals(5, mRemote.mTransactions);
+		assertEquals(STAT_FILE_TRANSACTION, mRemote.mLastCode);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void relativePathsAreRejected() throws IOException {
+		mService.statFiles(new String[] { "/data/a", "data/b" });
+	}
+
+	/** Implements the file transactions of the Xposed service with in-memory files. */
+	private static final class LoopbackService extends Binder {
+		private final Map<String, byte[]> mContents = new HashMap<>();
+		private final Map<String, Long> mTimes = new HashMap<>();
+		private final Map<String, Integer> mErrors = new HashMap<>();
+		boolean mSupportsBatches = true;
+		int mExtraResults = 0;
+		int mTransactions = 0;
+		int mLastCode = 0;
+
+		void addFile(String filename, byte[] content, long mtime) {
+			mContents.put(filename, content);
+			mTimes.put(filename, mtime);
+		}
+
+		void addError(String filename, int errno) {
+			mErrors.put(filename, errno);
+		}
+
+		@Override
+		protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) {
+			mTransactions++;
+			mLastCode = code;
+			switch (code) {
+				case STAT_FILE_TRANSACTION: {
+					data.enforceInterface(INTERFACE_TOKEN);
+					String filename = data.readString();
+					reply.writeNoException();
+					Integer errno = mErrors.get(filename);
+					reply.writeInt(errno != null ? errno : 0);
+					if (errno == null) {
+						reply.writeLong(mContents.get(filename).length);
+						reply.writeLong(mTimes.get(filename));
+					}
+					return true;
+				}
+
+				case READ_FILE_TRANSACTION: {
+					data.enforceInterface(INTERFACE_TOKEN);
+					String filename = data.readString();
+					int offset = data.readInt();
+					int length = data.readInt();
+					assertEquals(0, offset);
+					assertEquals(0, length);
+					reply.writeNoException();
+					writeEntry(reply, filename, data.readLong(), data.readLong(), true);
+					return true;
+				}
+
+				case STAT_FILES_TRANSACTION:
+				case READ_FILES_TRANSACTION: {
+					if (!mSupportsBatches)
+						return false;
+
+					data.enforceInterface(INTERFACE_TOKEN);
+					int count = data.readInt();
+					reply.writeNoException();
+					reply.writeInt(count + mExtraResults);
+					for (int i = 0; i < count; i++) {
+						String filename = data.readString();
+						long previousSize = data.readLong();
+						long previousTime = data.readLong();
+						writeEntry(reply, filename, previousSize, previousTime, code == READ_FILES_TRANSACTION);
+					}
+					return true;
+				}
+
+				default:
+					return false;
+			}
+		}
+
+		private void writeEntry(Parcel reply, String filename, long previousSize, long previousTime, boolean withContent) {
+			Integer errno = mErrors.get(filename);
+			if (errno != null) {
+				reply.writeInt(errno);
+				reply.writeString(null);
+				reply.writeLong(0);
+				reply.writeLong(0);
+				if (withContent)
+					reply.writeByteArray(null);
+				return;
+			}
+
+			byte[] content = mContents.get(filename);
+			long mtime = mTimes.get(filename);
+			boolean unmodified = previousSize == content.length && previousTime == mtime;
+			reply.writeInt(0);
+			reply.writeString(null);
+			reply.writeLong(content.length);
+			reply.writeLong(mtime);
+			if (withContent)
+				reply.writeByteArray(unmodified ? null : content);
+		}
+	}
+}
@@ -0,0 +1,7 @@
+package dalvik.system;
+
+public final class VMStack {
+	public static Class<?> getStackClass2() {
+		throw new UnsupportedOperationException("STUB");
+	}
+}